@@ -0,0 +1,78 @@
+package com.personaissance.persona.contentdb.benchmark;
+
+import com.personaissance.persona.contentdb.CandidateSet;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@author} gcapan
+ * Measures intersecting candidate sets of two fields, as {@link CandidateSet}s and as hashed {@link FastIDSet}s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CandidateSetBenchmark {
+
+  @Param({"50000"})
+  int candidates;
+
+  @Param({"1000000"})
+  int ids;
+
+  private CandidateSet candidateSetA;
+  private CandidateSet candidateSetB;
+  private FastIDSet idSetA;
+  private FastIDSet idSetB;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    candidateSetA = new CandidateSet();
+    candidateSetB = new CandidateSet();
+    idSetA = new FastIDSet();
+    idSetB = new FastIDSet();
+    for (int i = 0; i < candidates; i++) {
+      int a = random.nextInt(ids);
+      int b = random.nextInt(ids);
+      candidateSetA.add(a);
+      idSetA.add(a);
+      candidateSetB.add(b);
+      idSetB.add(b);
+    }
+  }
+
+  @Benchmark
+  public CandidateSet candidateSetAnd() {
+    return candidateSetA.and(candidateSetB);
+  }
+
+  @Benchmark
+  public FastIDSet fastIDSetAnd() {
+    FastIDSet result = new FastIDSet();
+    LongPrimitiveIterator iterator = idSetA.iterator();
+    while (iterator.hasNext()) {
+      long id = iterator.nextLong();
+      if (idSetB.contains(id)) {
+        result.add(id);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,105 @@
+package com.personaissance.persona.contentdb.benchmark;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.CoreContainer;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * {@author} gcapan
+ * An {@link EmbeddedSolrServer} on a copy of the fieldmatrix test core, loaded with a synthetic corpus. The solr home
+ * to copy can be set with the solr.home system property.
+ * <p/>
+ * Results depend on the Solr version the benchmarks run against, which is the solr-core on the classpath rather than
+ * the solr.version of the pom when they are run outside of it; report that version along with the results.
+ */
+@State(Scope.Benchmark)
+public class EmbeddedSolrState {
+
+  @Param({"10000"})
+  public int documents;
+
+  @Param({"2000"})
+  public int vocabulary;
+
+  @Param({"50"})
+  public int categories;
+
+  public EmbeddedSolrServer server;
+
+  private CoreContainer container;
+  private File solrHome;
+
+  @Setup(Level.Trial)
+  public void start() throws Exception {
+    solrHome = Files.createTempDir();
+    FileUtils.copyDirectory(new File(System.getProperty("solr.home", "src/test/resources/solr-home")), solrHome);
+    FileUtils.deleteDirectory(new File(solrHome, "fieldmatrix/data"));
+    container = CoreContainer.createAndLoad(solrHome.getAbsolutePath(), new File(solrHome, "solr.xml"));
+    server = new EmbeddedSolrServer(container, "fieldmatrix");
+
+    Random random = new Random(42);
+    List<SolrInputDocument> batch = Lists.newArrayList();
+    for (int id = 1; id <= documents; id++) {
+      batch.add(document(random, id));
+      if (batch.size() == 1000) {
+        server.add(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      server.add(batch);
+    }
+    server.commit();
+  }
+
+  /**
+   * @param random source of randomness
+   * @param id id of the document
+   * @return a document with all fields of the fieldmatrix schema
+   */
+  public SolrInputDocument document(Random random, int id) {
+    SolrInputDocument document = new SolrInputDocument();
+    document.addField("id", id);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 12; i++) {
+      //skewed towards frequent words
+      int word = (int) (vocabulary * Math.pow(random.nextDouble(), 3));
+      text.append("w").append(word).append(' ');
+    }
+    document.addField("textField", text.toString());
+    document.addField("intField", random.nextInt(1000));
+    document.addField("boolField", random.nextBoolean());
+    document.addField("naryStringField", "cat" + random.nextInt(categories));
+    for (int i = 0; i < 3; i++) {
+      document.addField("multiNaryStringField", "cat" + random.nextInt(categories));
+    }
+    document.addField("loc", (36 + 6 * random.nextDouble()) + "," + (26 + 18 * random.nextDouble()));
+    return document;
+  }
+
+  /**
+   * @return id of a random document of the corpus
+   */
+  public int randomRow(Random random) {
+    return random.nextInt(documents) + 1;
+  }
+
+  @TearDown(Level.Trial)
+  public void stop() throws Exception {
+    container.shutdown();
+    FileUtils.deleteDirectory(solrHome);
+  }
+}
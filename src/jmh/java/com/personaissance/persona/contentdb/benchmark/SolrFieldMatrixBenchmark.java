@@ -0,0 +1,283 @@
+package com.personaissance.persona.contentdb.benchmark;
+
+import com.personaissance.persona.contentdb.NumericColumn;
+import com.personaissance.persona.contentdb.TYPE;
+import com.personaissance.persona.contentdb.matrix.SolrFieldMatrix;
+import com.personaissance.persona.contentdb.matrix.SolrMatrix;
+import com.personaissance.persona.contentdb.matrix.SuperMatrix;
+import com.personaissance.persona.contentdb.matrix.cache.BoundedRowCache;
+import com.personaissance.persona.contentdb.matrix.cache.CandidateCache;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.Vector;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.common.SolrInputDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@author} gcapan
+ * Measures the Solr-backed hot paths of {@link SolrFieldMatrix} and {@link SolrMatrix} against an embedded Solr
+ * server. Cold benchmarks use matrices whose row cache keeps nothing, so that every row is fetched from Solr.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SolrFieldMatrixBenchmark {
+
+  private SolrFieldMatrix textMatrix;
+  private SolrFieldMatrix coldTextMatrix;
+  private SolrFieldMatrix coldLocalTextMatrix;
+  private SolrFieldMatrix intMatrix;
+  private SolrFieldMatrix coldIntMatrix;
+  private SolrFieldMatrix categoryMatrix;
+  private SolrFieldMatrix cachedTextMatrix;
+  private SolrFieldMatrix filterCategoryMatrix;
+  private SolrMatrix solrMatrix;
+  private SolrMatrix coldSolrMatrix;
+  private SolrMatrix coldParallelSolrMatrix;
+  private ExecutorService executor;
+  private Vector reference;
+  private final Random random = new Random(7);
+  private int nextId;
+
+  @Setup(Level.Trial)
+  public void setup(EmbeddedSolrState solr) throws Exception {
+    textMatrix = new SolrFieldMatrix(solr.server, "id", "textField", TYPE.TEXT, false);
+    intMatrix = new SolrFieldMatrix(solr.server, "id", "intField", TYPE.NUMERICAL, false);
+    categoryMatrix = new SolrFieldMatrix(solr.server, "id", "naryStringField", false, "loc", TYPE.MULTINOMIAL);
+    SolrFieldMatrix boolMatrix = new SolrFieldMatrix(solr.server, "id", "boolField", TYPE.BOOLEAN, false);
+    SolrFieldMatrix multiMatrix =
+       new SolrFieldMatrix(solr.server, "id", "multiNaryStringField", TYPE.MULTINOMIAL, true);
+    solrMatrix = new SolrMatrix(new SolrFieldMatrix[]{textMatrix, intMatrix, categoryMatrix, boolMatrix, multiMatrix});
+
+    coldTextMatrix = new SolrFieldMatrix(solr.server, "id", "textField", TYPE.TEXT, false);
+    coldTextMatrix.setRowCache(BoundedRowCache.withMaximumRows(0));
+    coldLocalTextMatrix = new SolrFieldMatrix(solr.server, "id", "textField", TYPE.TEXT, false);
+    coldLocalTextMatrix.setRowCache(BoundedRowCache.withMaximumRows(0));
+    coldLocalTextMatrix.setLocalTermVectors(true);
+    filterCategoryMatrix = new SolrFieldMatrix(solr.server, "id", "naryStringField", false, "loc", TYPE.MULTINOMIAL);
+    filterCategoryMatrix.setFilterCandidates(true);
+    cachedTextMatrix = new SolrFieldMatrix(solr.server, "id", "textField", TYPE.TEXT, false);
+    cachedTextMatrix.setCandidateCache(CandidateCache.withMaximumSets(1000, 1, TimeUnit.HOURS));
+    coldIntMatrix = new SolrFieldMatrix(solr.server, "id", "intField", TYPE.NUMERICAL, false);
+    coldIntMatrix.setRowCache(BoundedRowCache.withMaximumRows(0));
+    coldIntMatrix.setDocValuesIds(true);
+    SolrFieldMatrix[] coldMatrices = new SolrFieldMatrix[]{
+       new SolrFieldMatrix(solr.server, "id", "textField", TYPE.TEXT, false),
+       new SolrFieldMatrix(solr.server, "id", "intField", TYPE.NUMERICAL, false),
+       new SolrFieldMatrix(solr.server, "id", "naryStringField", TYPE.MULTINOMIAL, false),
+       new SolrFieldMatrix(solr.server, "id", "boolField", TYPE.BOOLEAN, false),
+       new SolrFieldMatrix(solr.server, "id", "multiNaryStringField", TYPE.MULTINOMIAL, true)};
+    for (SolrFieldMatrix matrix : coldMatrices) {
+      matrix.setRowCache(BoundedRowCache.withMaximumRows(0));
+    }
+    coldSolrMatrix = new SolrMatrix(coldMatrices);
+    SolrFieldMatrix[] coldParallelMatrices = new SolrFieldMatrix[]{
+       new SolrFieldMatrix(solr.server, "id", "textField", TYPE.TEXT, false),
+       new SolrFieldMatrix(solr.server, "id", "intField", TYPE.NUMERICAL, false),
+       new SolrFieldMatrix(solr.server, "id", "naryStringField", TYPE.MULTINOMIAL, false),
+       new SolrFieldMatrix(solr.server, "id", "boolField", TYPE.BOOLEAN, false),
+       new SolrFieldMatrix(solr.server, "id", "multiNaryStringField", TYPE.MULTINOMIAL, true)};
+    for (SolrFieldMatrix matrix : coldParallelMatrices) {
+      matrix.setRowCache(BoundedRowCache.withMaximumRows(0));
+    }
+    coldParallelSolrMatrix = new SolrMatrix(coldParallelMatrices);
+    executor = SuperMatrix.newFanOutExecutor();
+    coldParallelSolrMatrix.setExecutor(executor);
+
+    int[] rows = new int[solr.documents];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = i + 1;
+    }
+    solrMatrix.viewRows(rows);
+    reference = solrMatrix.viewRow(1);
+    nextId = solr.documents + 1;
+  }
+
+  @Benchmark
+  public Vector viewRowColdText(EmbeddedSolrState solr) {
+    return coldTextMatrix.viewRow(solr.randomRow(random));
+  }
+
+  @Benchmark
+  public Vector viewRowColdLocalText(EmbeddedSolrState solr) {
+    return coldLocalTextMatrix.viewRow(solr.randomRow(random));
+  }
+
+  @Benchmark
+  public Vector viewRowColdNumerical(EmbeddedSolrState solr) {
+    return coldIntMatrix.viewRow(solr.randomRow(random));
+  }
+
+  @Benchmark
+  public Vector viewRowWarmText(EmbeddedSolrState solr) {
+    return textMatrix.viewRow(solr.randomRow(random));
+  }
+
+  @Benchmark
+  public Vector[] viewRowsCold100(EmbeddedSolrState solr) {
+    int[] rows = new int[100];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = solr.randomRow(random);
+    }
+    return coldTextMatrix.viewRows(rows);
+  }
+
+  @Benchmark
+  public Vector[] viewRowsColdLocal100(EmbeddedSolrState solr) {
+    int[] rows = new int[100];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = solr.randomRow(random);
+    }
+    return coldLocalTextMatrix.viewRows(rows);
+  }
+
+  @Benchmark
+  public FastIDSet getCandidatesKeyword() throws Exception {
+    return textMatrix.getCandidates("w" + random.nextInt(50), 100);
+  }
+
+  @Benchmark
+  public FastIDSet getCandidatesAll(EmbeddedSolrState solr) throws Exception {
+    return intMatrix.getCandidates(new SolrQuery("*:*"), solr.documents);
+  }
+
+  @Benchmark
+  public FastIDSet getCandidatesAllDocValues(EmbeddedSolrState solr) throws Exception {
+    return coldIntMatrix.getCandidates(new SolrQuery("*:*"), solr.documents);
+  }
+
+  @Benchmark
+  public FastIDSet getCandidatesKeywordCached() throws Exception {
+    return cachedTextMatrix.getCandidates("w" + random.nextInt(50), 100);
+  }
+
+  @Benchmark
+  public FastIDSet getCandidatesQuery() throws Exception {
+    int lower = random.nextInt(900);
+    SolrQuery query = new SolrQuery("intField:[" + lower + " TO " + (lower + 100) + "]");
+    return intMatrix.getCandidates(query, 100);
+  }
+
+  @Benchmark
+  public FastIDSet getCandidatesCategory(EmbeddedSolrState solr) throws Exception {
+    return categoryMatrix.getCandidates("cat" + random.nextInt(solr.categories), 100);
+  }
+
+  @Benchmark
+  public FastIDSet getCandidatesCategoryFilter(EmbeddedSolrState solr) throws Exception {
+    return filterCategoryMatrix.getCandidates("cat" + random.nextInt(solr.categories), 100);
+  }
+
+  @Benchmark
+  public FastIDSet getCandidatesSpatialFilter(EmbeddedSolrState solr) throws Exception {
+    String category = "cat" + random.nextInt(solr.categories);
+    return filterCategoryMatrix.getCandidates(category, 39.9, 32.8, 300);
+  }
+
+  @Benchmark
+  public FastIDSet getCandidatesSpatial(EmbeddedSolrState solr) throws Exception {
+    String category = "cat" + random.nextInt(solr.categories);
+    return categoryMatrix.getCandidates(category, 39.9, 32.8, 300);
+  }
+
+  @Benchmark
+  public FastIDSet getRangeCandidates() throws Exception {
+    int lower = random.nextInt(900);
+    return intMatrix.getRangeCandidates(lower, lower + 100, 100);
+  }
+
+  @Benchmark
+  public FastIDSet getTopCandidates() throws Exception {
+    return intMatrix.getTopCandidates(100, true);
+  }
+
+  @Benchmark
+  public NumericColumn loadNumericColumn() throws Exception {
+    return coldIntMatrix.loadNumericColumn();
+  }
+
+  @Benchmark
+  public Vector[] viewNumericColumnByRows(EmbeddedSolrState solr) {
+    int[] rows = new int[solr.documents];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = i + 1;
+    }
+    return coldIntMatrix.viewRows(rows);
+  }
+
+  @Benchmark
+  public FastIDSet mostSimilars(EmbeddedSolrState solr) throws Exception {
+    return textMatrix.mostSimilars(solr.randomRow(random), 20);
+  }
+
+  @Benchmark
+  public Vector superMatrixViewRowCold(EmbeddedSolrState solr) {
+    return coldSolrMatrix.viewRow(solr.randomRow(random));
+  }
+
+  @Benchmark
+  public Vector superMatrixViewRowColdParallel(EmbeddedSolrState solr) {
+    return coldParallelSolrMatrix.viewRow(solr.randomRow(random));
+  }
+
+  @Benchmark
+  public Vector[] superMatrixViewRowsColdParallel100(EmbeddedSolrState solr) {
+    int[] rows = new int[100];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = solr.randomRow(random);
+    }
+    return coldParallelSolrMatrix.viewRows(rows);
+  }
+
+  @Benchmark
+  public Vector superMatrixViewRowWarm(EmbeddedSolrState solr) {
+    return solrMatrix.viewRow(solr.randomRow(random));
+  }
+
+  @Benchmark
+  public double superViewDot(EmbeddedSolrState solr) {
+    return solrMatrix.viewRow(solr.randomRow(random)).dot(reference);
+  }
+
+  @Benchmark
+  public double superViewIterate(EmbeddedSolrState solr) {
+    double sum = 0;
+    for (Vector.Element element : solrMatrix.viewRow(solr.randomRow(random)).nonZeroes()) {
+      sum += element.get();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public Matrix assignRow(EmbeddedSolrState solr) throws Exception {
+    int id = nextId++;
+    SolrInputDocument document = solr.document(random, id);
+    return intMatrix.assignRow(id, document);
+  }
+
+  @TearDown(Level.Trial)
+  public void shutdownExecutor() {
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,138 @@
+package com.personaissance.persona.contentdb.benchmark;
+
+import com.personaissance.persona.contentdb.matrix.SuperMatrix;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.SparseRowMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@author} gcapan
+ * Measures column routing of {@link SuperMatrix} over in-memory sparse sub-matrices, which view rows without
+ * copying like cached field matrices do, so that Solr access does not dominate. The linear scan benchmarks route
+ * columns like SuperMatrix did before its offset table, walking the column sizes and allocating the result, as the
+ * baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SuperMatrixBenchmark {
+
+  @Param({"32"})
+  int fields;
+
+  @Param({"64"})
+  int rows;
+
+  private Matrix[] matrices;
+  private int[] columnSizes;
+  private SuperMatrix matrix;
+  private int[] lookupRows;
+  private int[] lookupColumns;
+  private int[] rowColumns;
+  private double[] values;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    matrices = new Matrix[fields];
+    columnSizes = new int[fields];
+    for (int i = 0; i < fields; i++) {
+      //fields of mixed widths, like single column numerical fields next to vocabularies
+      matrices[i] = new SparseRowMatrix(rows, i % 4 == 0 ? 1 : 1 + random.nextInt(100));
+      for (int r = 0; r < rows; r++) {
+        for (int c = 0; c < matrices[i].columnSize(); c++) {
+          if (random.nextDouble() < 0.2) {
+            matrices[i].setQuick(r, c, random.nextDouble());
+          }
+        }
+      }
+    }
+    for (int i = 0; i < fields; i++) {
+      columnSizes[i] = matrices[i].columnSize();
+    }
+    matrix = new SuperMatrix(matrices);
+    lookupRows = new int[1024];
+    lookupColumns = new int[1024];
+    for (int i = 0; i < lookupRows.length; i++) {
+      lookupRows[i] = random.nextInt(rows);
+      lookupColumns[i] = random.nextInt(matrix.columnSize());
+    }
+    rowColumns = Arrays.copyOf(lookupColumns, 256);
+    Arrays.sort(rowColumns);
+    values = new double[rowColumns.length];
+  }
+
+  @Benchmark
+  public double getQuick() {
+    double sum = 0;
+    for (int i = 0; i < lookupRows.length; i++) {
+      sum += matrix.getQuick(lookupRows[i], lookupColumns[i]);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public double getQuickRowLoop() {
+    double sum = 0;
+    for (int column : rowColumns) {
+      sum += matrix.getQuick(0, column);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public double[] getQuickBulk() {
+    matrix.getQuick(0, rowColumns, values);
+    return values;
+  }
+
+  @Benchmark
+  public double getQuickLinearScan() {
+    double sum = 0;
+    for (int i = 0; i < lookupRows.length; i++) {
+      int[] indexes = findMatrixAndColumn(lookupColumns[i]);
+      sum += matrices[indexes[0]].getQuick(lookupRows[i], indexes[1]);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public double getQuickRowLoopLinearScan() {
+    double sum = 0;
+    for (int column : rowColumns) {
+      int[] indexes = findMatrixAndColumn(column);
+      sum += matrices[indexes[0]].getQuick(0, indexes[1]);
+    }
+    return sum;
+  }
+
+  /**
+   * Column routing of SuperMatrix before the offset table
+   */
+  private int[] findMatrixAndColumn(int column) {
+    int i = 0;
+    int ithColumnSize = columnSizes[0];
+    while (column >= ithColumnSize) {
+      column -= ithColumnSize;
+      ithColumnSize = columnSizes[++i];
+    }
+    return new int[]{i, column};
+  }
+}
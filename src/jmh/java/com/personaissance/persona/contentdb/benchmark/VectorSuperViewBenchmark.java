@@ -0,0 +1,130 @@
+package com.personaissance.persona.contentdb.benchmark;
+
+import com.personaissance.persona.contentdb.matrix.VectorSuperView;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@author} gcapan
+ * Compares a {@link VectorSuperView} over field vectors with a single {@link SequentialAccessSparseVector} holding
+ * the same values, for the operations of the scoring loop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VectorSuperViewBenchmark {
+
+  @Param({"8"})
+  int fields;
+
+  @Param({"1000"})
+  int fieldSize;
+
+  @Param({"0.05"})
+  double density;
+
+  private Vector[] vectors;
+  private Vector superView;
+  private Vector flat;
+  private Vector other;
+  private int[] lookups;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    vectors = new Vector[fields];
+    for (int i = 0; i < fields; i++) {
+      vectors[i] = randomVector(random, fieldSize);
+    }
+    superView = new VectorSuperView(fields * fieldSize, vectors);
+    flat = VectorSuperView.createNewVector(fields * fieldSize, vectors);
+    other = randomVector(random, fields * fieldSize);
+    lookups = new int[1024];
+    for (int i = 0; i < lookups.length; i++) {
+      lookups[i] = random.nextInt(fields * fieldSize);
+    }
+  }
+
+  private Vector randomVector(Random random, int size) {
+    Vector v = new SequentialAccessSparseVector(size);
+    for (int i = 0; i < size; i++) {
+      if (random.nextDouble() < density) {
+        v.setQuick(i, random.nextDouble());
+      }
+    }
+    return v;
+  }
+
+  @Benchmark
+  public Vector constructSuperView() {
+    return new VectorSuperView(fields * fieldSize, vectors);
+  }
+
+  @Benchmark
+  public Vector constructCopy() {
+    return VectorSuperView.createNewVector(fields * fieldSize, vectors);
+  }
+
+  @Benchmark
+  public double iterateSuperView() {
+    return sumNonZeroes(superView);
+  }
+
+  @Benchmark
+  public double iterateFlat() {
+    return sumNonZeroes(flat);
+  }
+
+  private static double sumNonZeroes(Vector v) {
+    double sum = 0;
+    for (Vector.Element element : v.nonZeroes()) {
+      sum += element.index() * element.get();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public double dotSuperView() {
+    return superView.dot(other);
+  }
+
+  @Benchmark
+  public double dotFlat() {
+    return flat.dot(other);
+  }
+
+  @Benchmark
+  public double getQuickSuperView() {
+    return lookup(superView);
+  }
+
+  @Benchmark
+  public double getQuickFlat() {
+    return lookup(flat);
+  }
+
+  private double lookup(Vector v) {
+    double sum = 0;
+    for (int index : lookups) {
+      sum += v.getQuick(index);
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,286 @@
+package com.personaissance.persona.contentdb;
+
+import com.personaissance.persona.contentdb.matrix.SuperMatrix;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.math.Vector;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * {@author} gcapan
+ * Non-blocking view of a {@link Content}: each call is run on an executor, and its result is returned as a
+ * {@link CompletableFuture}, so that candidate retrieval, row loading and scoring can overlap without holding a
+ * thread of the caller per Solr request.
+ * <p>
+ * A call that does not complete within the timeout, if set, completes exceptionally with a {@link TimeoutException}.
+ * Cancelling a future, or timing out, skips the call if it has not started yet, and interrupts it otherwise; whether
+ * an interrupt aborts a Solr request in progress depends on the Solr client.
+ * Failures of the underlying calls, such as {@link com.personaissance.persona.contentdb.exception.ContentException}s,
+ * complete the futures exceptionally.
+ */
+public class AsyncContent {
+
+  private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(
+     new ThreadFactoryBuilder().setDaemon(true).setNameFormat("async-content-timer-%d").build());
+
+  private final Content content;
+  private final ExecutorService executor;
+  private volatile long timeoutNanos = 0;
+
+  /**
+   * Runs calls on a virtual thread per call if supported, see {@link SuperMatrix#newFanOutExecutor()}
+   * @param content the content calls are made to
+   */
+  public AsyncContent(Content content) {
+    this(content, SuperMatrix.newFanOutExecutor());
+  }
+
+  /**
+   * @param content the content calls are made to
+   * @param executor the executor calls are run on; it is not shut down by this
+   */
+  public AsyncContent(Content content, ExecutorService executor) {
+    this.content = Preconditions.checkNotNull(content);
+    this.executor = Preconditions.checkNotNull(executor);
+  }
+
+  public Content getContent() {
+    return content;
+  }
+
+  public long getTimeout(TimeUnit unit) {
+    return unit.convert(timeoutNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param timeout time a call may take, from the moment it is made; 0 for no timeout
+   * @param unit unit of the timeout
+   */
+  public void setTimeout(long timeout, TimeUnit unit) {
+    Preconditions.checkArgument(timeout >= 0, "timeout can not be negative");
+    this.timeoutNanos = unit.toNanos(timeout);
+  }
+
+  /**
+   * @see Content#getCandidates(String, String, int)
+   */
+  public CompletableFuture<FastIDSet> getCandidates(final String identifier, final String keyword,
+                                                    final int maxLength) {
+    return submit(new Callable<FastIDSet>() {
+      @Override
+      public FastIDSet call() throws Exception {
+        return content.getCandidates(identifier, keyword, maxLength);
+      }
+    });
+  }
+
+  /**
+   * @see Content#getCandidates(String, String, int, int)
+   */
+  public CompletableFuture<FastIDSet> getCandidates(final String identifier, final String keyword, final int start,
+                                                    final int maxLength) {
+    return submit(new Callable<FastIDSet>() {
+      @Override
+      public FastIDSet call() throws Exception {
+        return content.getCandidates(identifier, keyword, start, maxLength);
+      }
+    });
+  }
+
+  /**
+   * @see Content#getCandidates(String, String, double, double, int)
+   */
+  public CompletableFuture<FastIDSet> getCandidates(final String identifier, final String keyword,
+                                                    final double latitude, final double longitude,
+                                                    final int rangeInKm) {
+    return submit(new Callable<FastIDSet>() {
+      @Override
+      public FastIDSet call() throws Exception {
+        return content.getCandidates(identifier, keyword, latitude, longitude, rangeInKm);
+      }
+    });
+  }
+
+  /**
+   * @see Content#getCandidates(String, SolrQuery, int)
+   */
+  public CompletableFuture<FastIDSet> getCandidates(final String identifier, final SolrQuery query,
+                                                    final int maxLength) {
+    return submit(new Callable<FastIDSet>() {
+      @Override
+      public FastIDSet call() throws Exception {
+        return content.getCandidates(identifier, query, maxLength);
+      }
+    });
+  }
+
+  /**
+   * @see Content#getCandidates(String, SolrQuery, int, int)
+   */
+  public CompletableFuture<FastIDSet> getCandidates(final String identifier, final SolrQuery query, final int start,
+                                                    final int maxLength) {
+    return submit(new Callable<FastIDSet>() {
+      @Override
+      public FastIDSet call() throws Exception {
+        return content.getCandidates(identifier, query, start, maxLength);
+      }
+    });
+  }
+
+  /**
+   * @see Content#mostSimilars(String, int, int)
+   */
+  public CompletableFuture<FastIDSet> mostSimilars(final String identifier, final int id, final int maxLength) {
+    return submit(new Callable<FastIDSet>() {
+      @Override
+      public FastIDSet call() throws Exception {
+        return content.mostSimilars(identifier, id, maxLength);
+      }
+    });
+  }
+
+  /**
+   * @see Content#getRangeCandidates(String, double, double, int)
+   */
+  public CompletableFuture<FastIDSet> getRangeCandidates(final String identifier, final double lower,
+                                                         final double upper, final int maxLength) {
+    return submit(new Callable<FastIDSet>() {
+      @Override
+      public FastIDSet call() throws Exception {
+        return content.getRangeCandidates(identifier, lower, upper, maxLength);
+      }
+    });
+  }
+
+  /**
+   * @see Content#getTopCandidates(String, int, boolean)
+   */
+  public CompletableFuture<FastIDSet> getTopCandidates(final String identifier, final int k,
+                                                       final boolean descending) {
+    return submit(new Callable<FastIDSet>() {
+      @Override
+      public FastIDSet call() throws Exception {
+        return content.getTopCandidates(identifier, k, descending);
+      }
+    });
+  }
+
+  /**
+   * @see Content#getNumericColumn(String)
+   */
+  public CompletableFuture<NumericColumn> getNumericColumn(final String identifier) {
+    return submit(new Callable<NumericColumn>() {
+      @Override
+      public NumericColumn call() throws Exception {
+        return content.getNumericColumn(identifier);
+      }
+    });
+  }
+
+  /**
+   * @see Content#getCandidates(CandidateFilter[], int)
+   */
+  public CompletableFuture<CandidateSet> getCandidates(final CandidateFilter[] filters, final int maxLength) {
+    return submit(new Callable<CandidateSet>() {
+      @Override
+      public CandidateSet call() throws Exception {
+        return content.getCandidates(filters, maxLength);
+      }
+    });
+  }
+
+  /**
+   * @see Content#setContent(int, SolrInputDocument)
+   */
+  public CompletableFuture<Void> setContent(final int id, final SolrInputDocument document) {
+    return submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        content.setContent(id, document);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * @param row the row
+   * @return the row, as viewed by {@link Content#viewRow(int)}
+   */
+  public CompletableFuture<Vector> viewRow(final int row) {
+    return submit(new Callable<Vector>() {
+      @Override
+      public Vector call() {
+        return content.viewRow(row);
+      }
+    });
+  }
+
+  /**
+   * @param rows rows to be viewed
+   * @return row vectors, aligned with rows; fetched in batches if the content is a {@link SuperMatrix}
+   */
+  public CompletableFuture<Vector[]> viewRows(final int[] rows) {
+    return submit(new Callable<Vector[]>() {
+      @Override
+      public Vector[] call() {
+        if (content instanceof SuperMatrix) {
+          return ((SuperMatrix) content).viewRows(rows);
+        }
+        Vector[] vectors = new Vector[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+          vectors[i] = content.viewRow(rows[i]);
+        }
+        return vectors;
+      }
+    });
+  }
+
+  private <T> CompletableFuture<T> submit(final Callable<T> call) {
+    final CompletableFuture<T> result = new CompletableFuture<T>();
+    final Future<?> task = executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        if (result.isDone()) {
+          return;
+        }
+        try {
+          result.complete(call.call());
+        } catch (Throwable t) {
+          result.completeExceptionally(t);
+        }
+      }
+    });
+    final long timeoutNanos = this.timeoutNanos;
+    final ScheduledFuture<?> timer = timeoutNanos == 0 ? null : TIMER.schedule(new Runnable() {
+      @Override
+      public void run() {
+        result.completeExceptionally(new TimeoutException("Timed out after " + timeoutNanos + " ns"));
+      }
+    }, timeoutNanos, TimeUnit.NANOSECONDS);
+    result.whenComplete(new BiConsumer<T, Throwable>() {
+      @Override
+      public void accept(T value, Throwable t) {
+        if (timer != null) {
+          timer.cancel(false);
+        }
+        if (result.isCancelled() || t instanceof TimeoutException) {
+          task.cancel(true);
+        }
+      }
+    });
+    return result;
+  }
+}
@@ -0,0 +1,101 @@
+package com.personaissance.persona.contentdb;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * {@author} gcapan
+ * A filter on a field of a {@link Content}, matching a keyword, optionally within a proximity, or a range of values
+ * of a numerical field; see {@link Content#getCandidates(CandidateFilter[], int)}.
+ */
+public final class CandidateFilter {
+  private final String identifier;
+  private final String keyword;
+  private final boolean spatial;
+  private final double latitude;
+  private final double longitude;
+  private final int rangeInKm;
+  private final boolean range;
+  private final double lower;
+  private final double upper;
+
+  private CandidateFilter(String identifier, String keyword, boolean spatial, double latitude, double longitude,
+                          int rangeInKm, boolean range, double lower, double upper) {
+    this.identifier = Preconditions.checkNotNull(identifier);
+    this.keyword = keyword;
+    this.spatial = spatial;
+    this.latitude = latitude;
+    this.longitude = longitude;
+    this.rangeInKm = rangeInKm;
+    this.range = range;
+    this.lower = lower;
+    this.upper = upper;
+  }
+
+  /**
+   * @see Content#getCandidates(String, String, int)
+   */
+  public static CandidateFilter keyword(String identifier, String keyword) {
+    return new CandidateFilter(identifier, Preconditions.checkNotNull(keyword), false, 0, 0, 0, false, 0, 0);
+  }
+
+  /**
+   * @see Content#getCandidates(String, String, double, double, int)
+   */
+  public static CandidateFilter spatial(String identifier, String keyword, double latitude, double longitude,
+                                        int rangeInKm) {
+    return new CandidateFilter(identifier, Preconditions.checkNotNull(keyword), true, latitude, longitude, rangeInKm,
+       false, 0, 0);
+  }
+
+  /**
+   * Integral bounds are written without a fraction, so that they parse for integer fields too; fractional bounds
+   * require a floating point field.
+   * @param identifier a numerical field
+   * @param lower lower bound, inclusive; negative infinity for no bound
+   * @param upper upper bound, inclusive; positive infinity for no bound
+   * @return a filter matching values of the field within the bounds
+   */
+  public static CandidateFilter range(String identifier, double lower, double upper) {
+    Preconditions.checkArgument(lower <= upper, "lower bound is greater than the upper bound");
+    return new CandidateFilter(identifier, null, false, 0, 0, 0, true, lower, upper);
+  }
+
+  public String getIdentifier() {
+    return identifier;
+  }
+
+  /**
+   * @return the keyword, or null for a range filter
+   */
+  public String getKeyword() {
+    return keyword;
+  }
+
+  public boolean isSpatial() {
+    return spatial;
+  }
+
+  public double getLatitude() {
+    return latitude;
+  }
+
+  public double getLongitude() {
+    return longitude;
+  }
+
+  public int getRangeInKm() {
+    return rangeInKm;
+  }
+
+  public boolean isRange() {
+    return range;
+  }
+
+  public double getLower() {
+    return lower;
+  }
+
+  public double getUpper() {
+    return upper;
+  }
+}
@@ -0,0 +1,441 @@
+package com.personaissance.persona.contentdb;
+
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+
+import java.util.Arrays;
+
+/**
+ * {@author} gcapan
+ * A compact set of int ids, laid out like a roaring bitmap: ids are partitioned by their high 16 bits, and the low 16
+ * bits of each partition are kept in a sorted array while the partition is sparse, and in a 2^16 bit bitmap once it
+ * holds more than 4096 ids. Set operations work partition by partition, and return new sets.
+ * Ids are ordered as unsigned ints. Not safe for concurrent modification.
+ */
+public final class CandidateSet {
+
+  /**
+   * Maximum number of ids in an array partition; an array of this many chars is as large as a bitmap
+   */
+  private static final int ARRAY_LIMIT = 4096;
+  private static final int BITMAP_WORDS = 1 << 10;
+
+  private char[] keys;
+  /**
+   * Sorted char[] or long[] bitmap of each partition
+   */
+  private Object[] containers;
+  private int[] cardinalities;
+  private int size = 0;
+
+  public CandidateSet() {
+    this(4);
+  }
+
+  private CandidateSet(int capacity) {
+    keys = new char[capacity];
+    containers = new Object[capacity];
+    cardinalities = new int[capacity];
+  }
+
+  public static CandidateSet of(int... ids) {
+    CandidateSet set = new CandidateSet();
+    for (int id : ids) {
+      set.add(id);
+    }
+    return set;
+  }
+
+  /**
+   * @param ids ids, which should fit in an int
+   * @return a set of the ids
+   */
+  public static CandidateSet of(FastIDSet ids) {
+    CandidateSet set = new CandidateSet();
+    LongPrimitiveIterator iterator = ids.iterator();
+    while (iterator.hasNext()) {
+      set.add((int) iterator.nextLong());
+    }
+    return set;
+  }
+
+  /**
+   * @param id the id
+   * @return whether the id was not in the set before
+   */
+  public boolean add(int id) {
+    char key = (char) (id >>> 16);
+    char low = (char) id;
+    int i = Arrays.binarySearch(keys, 0, size, key);
+    if (i < 0) {
+      i = -i - 1;
+      insertContainer(i, key, new char[4], 0);
+    }
+    Object container = containers[i];
+    if (container instanceof long[]) {
+      long[] bitmap = (long[]) container;
+      long bit = 1L << low;
+      if ((bitmap[low >>> 6] & bit) != 0) {
+        return false;
+      }
+      bitmap[low >>> 6] |= bit;
+      cardinalities[i]++;
+      return true;
+    }
+    char[] array = (char[]) container;
+    int cardinality = cardinalities[i];
+    int j = Arrays.binarySearch(array, 0, cardinality, low);
+    if (j >= 0) {
+      return false;
+    }
+    j = -j - 1;
+    if (cardinality == ARRAY_LIMIT) {
+      long[] bitmap = toBitmap(array, cardinality);
+      bitmap[low >>> 6] |= 1L << low;
+      containers[i] = bitmap;
+    } else {
+      if (cardinality == array.length) {
+        array = Arrays.copyOf(array, Math.min(ARRAY_LIMIT, cardinality * 2));
+        containers[i] = array;
+      }
+      System.arraycopy(array, j, array, j + 1, cardinality - j);
+      array[j] = low;
+    }
+    cardinalities[i]++;
+    return true;
+  }
+
+  public boolean contains(int id) {
+    int i = Arrays.binarySearch(keys, 0, size, (char) (id >>> 16));
+    if (i < 0) {
+      return false;
+    }
+    char low = (char) id;
+    Object container = containers[i];
+    if (container instanceof long[]) {
+      return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+    }
+    return Arrays.binarySearch((char[]) container, 0, cardinalities[i], low) >= 0;
+  }
+
+  public int size() {
+    int cardinality = 0;
+    for (int i = 0; i < size; i++) {
+      cardinality += cardinalities[i];
+    }
+    return cardinality;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return ids of the set, in unsigned order
+   */
+  public int[] toArray() {
+    int[] ids = new int[size()];
+    int n = 0;
+    for (int i = 0; i < size; i++) {
+      int high = keys[i] << 16;
+      Object container = containers[i];
+      if (container instanceof long[]) {
+        long[] bitmap = (long[]) container;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+          long word = bitmap[w];
+          while (word != 0) {
+            ids[n++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+            word &= word - 1;
+          }
+        }
+      } else {
+        char[] array = (char[]) container;
+        for (int j = 0; j < cardinalities[i]; j++) {
+          ids[n++] = high | array[j];
+        }
+      }
+    }
+    return ids;
+  }
+
+  public FastIDSet toFastIDSet() {
+    int[] ids = toArray();
+    FastIDSet set = new FastIDSet(Math.max(1, ids.length));
+    for (int id : ids) {
+      set.add(id);
+    }
+    return set;
+  }
+
+  /**
+   * @return ids in both sets
+   */
+  public CandidateSet and(CandidateSet other) {
+    CandidateSet result = new CandidateSet(Math.max(1, Math.min(size, other.size)));
+    int i = 0;
+    int j = 0;
+    while (i < size && j < other.size) {
+      if (keys[i] < other.keys[j]) {
+        i++;
+      } else if (keys[i] > other.keys[j]) {
+        j++;
+      } else {
+        result.appendAnd(keys[i], containers[i], cardinalities[i], other.containers[j], other.cardinalities[j]);
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return ids in either set
+   */
+  public CandidateSet or(CandidateSet other) {
+    CandidateSet result = new CandidateSet(Math.max(1, size + other.size));
+    int i = 0;
+    int j = 0;
+    while (i < size || j < other.size) {
+      if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+        result.append(keys[i], copy(containers[i]), cardinalities[i]);
+        i++;
+      } else if (i == size || keys[i] > other.keys[j]) {
+        result.append(other.keys[j], copy(other.containers[j]), other.cardinalities[j]);
+        j++;
+      } else {
+        result.appendOr(keys[i], containers[i], cardinalities[i], other.containers[j], other.cardinalities[j]);
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return ids in this set, but not in the other
+   */
+  public CandidateSet andNot(CandidateSet other) {
+    CandidateSet result = new CandidateSet(Math.max(1, size));
+    int j = 0;
+    for (int i = 0; i < size; i++) {
+      while (j < other.size && other.keys[j] < keys[i]) {
+        j++;
+      }
+      if (j < other.size && other.keys[j] == keys[i]) {
+        result.appendAndNot(keys[i], containers[i], cardinalities[i], other.containers[j], other.cardinalities[j]);
+      } else {
+        result.append(keys[i], copy(containers[i]), cardinalities[i]);
+      }
+    }
+    return result;
+  }
+
+  private void appendAnd(char key, Object a, int cardinalityA, Object b, int cardinalityB) {
+    if (a instanceof long[] && b instanceof long[]) {
+      long[] bitmap = new long[BITMAP_WORDS];
+      int cardinality = 0;
+      for (int w = 0; w < BITMAP_WORDS; w++) {
+        bitmap[w] = ((long[]) a)[w] & ((long[]) b)[w];
+        cardinality += Long.bitCount(bitmap[w]);
+      }
+      appendBitmap(key, bitmap, cardinality);
+    } else if (a instanceof long[]) {
+      appendAnd(key, b, cardinalityB, a, cardinalityA);
+    } else if (b instanceof long[]) {
+      char[] array = (char[]) a;
+      long[] bitmap = (long[]) b;
+      char[] result = new char[cardinalityA];
+      int cardinality = 0;
+      for (int k = 0; k < cardinalityA; k++) {
+        if ((bitmap[array[k] >>> 6] & (1L << array[k])) != 0) {
+          result[cardinality++] = array[k];
+        }
+      }
+      append(key, result, cardinality);
+    } else {
+      char[] x = (char[]) a;
+      char[] y = (char[]) b;
+      char[] result = new char[Math.min(cardinalityA, cardinalityB)];
+      int cardinality = 0;
+      int i = 0;
+      int j = 0;
+      while (i < cardinalityA && j < cardinalityB) {
+        if (x[i] < y[j]) {
+          i++;
+        } else if (x[i] > y[j]) {
+          j++;
+        } else {
+          result[cardinality++] = x[i];
+          i++;
+          j++;
+        }
+      }
+      append(key, result, cardinality);
+    }
+  }
+
+  private void appendOr(char key, Object a, int cardinalityA, Object b, int cardinalityB) {
+    if (b instanceof long[] && !(a instanceof long[])) {
+      appendOr(key, b, cardinalityB, a, cardinalityA);
+      return;
+    }
+    if (a instanceof long[]) {
+      long[] bitmap = ((long[]) a).clone();
+      if (b instanceof long[]) {
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+          bitmap[w] |= ((long[]) b)[w];
+        }
+      } else {
+        char[] array = (char[]) b;
+        for (int k = 0; k < cardinalityB; k++) {
+          bitmap[array[k] >>> 6] |= 1L << array[k];
+        }
+      }
+      int cardinality = 0;
+      for (long word : bitmap) {
+        cardinality += Long.bitCount(word);
+      }
+      appendBitmap(key, bitmap, cardinality);
+      return;
+    }
+    char[] x = (char[]) a;
+    char[] y = (char[]) b;
+    char[] result = new char[cardinalityA + cardinalityB];
+    int cardinality = 0;
+    int i = 0;
+    int j = 0;
+    while (i < cardinalityA || j < cardinalityB) {
+      if (j == cardinalityB || (i < cardinalityA && x[i] < y[j])) {
+        result[cardinality++] = x[i++];
+      } else if (i == cardinalityA || x[i] > y[j]) {
+        result[cardinality++] = y[j++];
+      } else {
+        result[cardinality++] = x[i];
+        i++;
+        j++;
+      }
+    }
+    if (cardinality > ARRAY_LIMIT) {
+      append(key, toBitmap(result, cardinality), cardinality);
+    } else {
+      append(key, result, cardinality);
+    }
+  }
+
+  private void appendAndNot(char key, Object a, int cardinalityA, Object b, int cardinalityB) {
+    if (a instanceof long[]) {
+      long[] bitmap = ((long[]) a).clone();
+      if (b instanceof long[]) {
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+          bitmap[w] &= ~((long[]) b)[w];
+        }
+      } else {
+        char[] array = (char[]) b;
+        for (int k = 0; k < cardinalityB; k++) {
+          bitmap[array[k] >>> 6] &= ~(1L << array[k]);
+        }
+      }
+      int cardinality = 0;
+      for (long word : bitmap) {
+        cardinality += Long.bitCount(word);
+      }
+      appendBitmap(key, bitmap, cardinality);
+      return;
+    }
+    char[] x = (char[]) a;
+    char[] result = new char[cardinalityA];
+    int cardinality = 0;
+    if (b instanceof long[]) {
+      long[] bitmap = (long[]) b;
+      for (int k = 0; k < cardinalityA; k++) {
+        if ((bitmap[x[k] >>> 6] & (1L << x[k])) == 0) {
+          result[cardinality++] = x[k];
+        }
+      }
+    } else {
+      char[] y = (char[]) b;
+      int j = 0;
+      for (int i = 0; i < cardinalityA; i++) {
+        while (j < cardinalityB && y[j] < x[i]) {
+          j++;
+        }
+        if (j == cardinalityB || y[j] != x[i]) {
+          result[cardinality++] = x[i];
+        }
+      }
+    }
+    append(key, result, cardinality);
+  }
+
+  /**
+   * Appends a bitmap partition, as an array if it became sparse
+   */
+  private void appendBitmap(char key, long[] bitmap, int cardinality) {
+    if (cardinality > ARRAY_LIMIT) {
+      append(key, bitmap, cardinality);
+      return;
+    }
+    char[] array = new char[cardinality];
+    int n = 0;
+    for (int w = 0; w < BITMAP_WORDS; w++) {
+      long word = bitmap[w];
+      while (word != 0) {
+        array[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+        word &= word - 1;
+      }
+    }
+    append(key, array, cardinality);
+  }
+
+  /**
+   * Appends a partition after the last one; empty partitions are skipped
+   */
+  private void append(char key, Object container, int cardinality) {
+    if (cardinality > 0) {
+      insertContainer(size, key, container, cardinality);
+    }
+  }
+
+  private void insertContainer(int i, char key, Object container, int cardinality) {
+    if (size == keys.length) {
+      int capacity = Math.max(4, size * 2);
+      keys = Arrays.copyOf(keys, capacity);
+      containers = Arrays.copyOf(containers, capacity);
+      cardinalities = Arrays.copyOf(cardinalities, capacity);
+    }
+    System.arraycopy(keys, i, keys, i + 1, size - i);
+    System.arraycopy(containers, i, containers, i + 1, size - i);
+    System.arraycopy(cardinalities, i, cardinalities, i + 1, size - i);
+    keys[i] = key;
+    containers[i] = container;
+    cardinalities[i] = cardinality;
+    size++;
+  }
+
+  private static long[] toBitmap(char[] array, int cardinality) {
+    long[] bitmap = new long[BITMAP_WORDS];
+    for (int k = 0; k < cardinality; k++) {
+      bitmap[array[k] >>> 6] |= 1L << array[k];
+    }
+    return bitmap;
+  }
+
+  private static Object copy(Object container) {
+    return container instanceof long[] ? ((long[]) container).clone() : ((char[]) container).clone();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof CandidateSet && Arrays.equals(toArray(), ((CandidateSet) o).toArray());
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(toArray());
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(toArray());
+  }
+}
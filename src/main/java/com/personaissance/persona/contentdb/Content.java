@@ -49,6 +49,31 @@ public interface Content extends Matrix {
 
   FastIDSet getCandidates (String identifier, SolrQuery query, int start, int maxLength) throws ContentException;
 
+  /**
+   * Used for pre-filtering entities whose numerical value, e.g. price, is within a range; matches are neither scored
+   * nor sorted, and the first maxLength of them in index order are returned.
+   * @param lower lower bound, inclusive; {@link Double#NEGATIVE_INFINITY} for no lower bound
+   * @param upper upper bound, inclusive; {@link Double#POSITIVE_INFINITY} for no upper bound
+   * @param maxLength max number of candidates to be returned
+   * @return set of candidate entities
+   */
+  FastIDSet getRangeCandidates (String identifier, double lower, double upper, int maxLength) throws ContentException;
+
+  /**
+   * Used for pre-filtering the entities with the k largest, or smallest, numerical values, e.g. the most popular or
+   * the most recent ones.
+   * @param k number of candidates to be returned
+   * @param descending whether the largest values, rather than the smallest, are returned
+   * @return set of candidate entities
+   */
+  FastIDSet getTopCandidates (String identifier, int k, boolean descending) throws ContentException;
+
+  /**
+   * Used to load a numerical field of all entities at once, to filter or rank candidates without viewing their rows.
+   * @return values of the field by id; ids without a value are {@link Double#NaN}
+   */
+  NumericColumn getNumericColumn (String identifier) throws ContentException;
+
   /**
    * Used to find most similar entities in content.
    * @param id Id of the entity to find most similars for
@@ -57,6 +82,17 @@ public interface Content extends Matrix {
    */
   FastIDSet mostSimilars (String identifier, int id, int maxLength) throws ContentException;
 
+  /**
+   * Used for pre-filtering entities that match all of the filters, with a single Solr query that has a filter
+   * query per filter, so that each filter is cached by Solr's filter cache; matches are neither scored nor sorted,
+   * and the first maxLength of them in index order are returned. Sets of separate calls can be combined
+   * otherwise, with {@link CandidateSet#or(CandidateSet)} and {@link CandidateSet#andNot(CandidateSet)}.
+   * @param filters filters on fields of the same index
+   * @param maxLength max number of candidates to be returned
+   * @return set of candidate entities
+   */
+  CandidateSet getCandidates(CandidateFilter[] filters, int maxLength) throws ContentException;
+
   /**
    * Used to add a new entity
    * @param id id of the entity
@@ -0,0 +1,121 @@
+package com.personaissance.persona.contentdb;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.math.list.IntArrayList;
+import org.apache.mahout.math.map.OpenIntDoubleHashMap;
+
+import java.util.Arrays;
+
+/**
+ * {@author} gcapan
+ * Values of a numerical field, by non-negative int id. Values are kept in a dense array indexed by id while the ids
+ * are dense enough, and in a hash map otherwise, so that a few large ids do not allocate an array as long as the
+ * largest id. Ids without a value read as {@link Double#NaN}.
+ */
+public final class NumericColumn {
+
+  /**
+   * A dense array is used while it is at most this many times as long as the number of values
+   */
+  private static final int MAX_DENSE_RATIO = 4;
+  /**
+   * Arrays up to this length are always dense
+   */
+  private static final int MIN_DENSE_LENGTH = 1 << 10;
+
+  private double[] dense = new double[0];
+  private OpenIntDoubleHashMap sparse = null;
+  private int length = 0;
+  private int size = 0;
+
+  /**
+   * @param id the id, non-negative and less than {@link Integer#MAX_VALUE}
+   * @param value the value
+   */
+  public void set(int id, double value) {
+    Preconditions.checkArgument(id >= 0 && id < Integer.MAX_VALUE, "id %s is out of the range of a column", id);
+    if (sparse == null && id >= dense.length) {
+      long capacity = Math.max((long) id + 1, 2L * dense.length);
+      if (capacity <= Math.max(MIN_DENSE_LENGTH, (long) MAX_DENSE_RATIO * (size + 1))) {
+        int previous = dense.length;
+        dense = Arrays.copyOf(dense, (int) capacity);
+        Arrays.fill(dense, previous, dense.length, Double.NaN);
+      } else {
+        toSparse();
+      }
+    }
+    boolean added;
+    if (sparse == null) {
+      added = Double.isNaN(dense[id]);
+      dense[id] = value;
+    } else {
+      added = !sparse.containsKey(id);
+      sparse.put(id, value);
+    }
+    if (added) {
+      size++;
+    }
+    length = Math.max(length, id + 1);
+  }
+
+  private void toSparse() {
+    sparse = new OpenIntDoubleHashMap(Math.max(size * 2, 16));
+    for (int id = 0; id < length; id++) {
+      if (!Double.isNaN(dense[id])) {
+        sparse.put(id, dense[id]);
+      }
+    }
+    dense = null;
+  }
+
+  /**
+   * @param id the id
+   * @return the value of the id, or {@link Double#NaN} if it has none
+   */
+  public double get(int id) {
+    if (id < 0 || id >= length) {
+      return Double.NaN;
+    }
+    if (sparse == null) {
+      return dense[id];
+    }
+    return sparse.containsKey(id) ? sparse.get(id) : Double.NaN;
+  }
+
+  /**
+   * @return one more than the largest id with a value
+   */
+  public int length() {
+    return length;
+  }
+
+  /**
+   * @return number of ids with a value
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return whether values are kept in an array indexed by id
+   */
+  public boolean isDense() {
+    return sparse == null;
+  }
+
+  /**
+   * @return a copy of the values, indexed by id, of {@link #length()}; ids without a value are {@link Double#NaN}
+   */
+  public double[] toArray() {
+    if (sparse == null) {
+      return Arrays.copyOf(dense, length);
+    }
+    double[] values = new double[length];
+    Arrays.fill(values, Double.NaN);
+    IntArrayList ids = sparse.keys();
+    for (int i = 0; i < ids.size(); i++) {
+      values[ids.getQuick(i)] = sparse.get(ids.getQuick(i));
+    }
+    return values;
+  }
+}
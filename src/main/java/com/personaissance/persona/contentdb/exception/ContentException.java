@@ -7,4 +7,8 @@ public class ContentException extends Exception {
   public ContentException(Throwable cause) {
     super(cause);
   }
+
+  public ContentException(String message, Throwable cause) {
+    super(message, cause);
+  }
 }
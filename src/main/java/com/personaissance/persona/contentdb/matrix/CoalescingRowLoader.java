@@ -0,0 +1,152 @@
+package com.personaissance.persona.contentdb.matrix;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@author} gcapan
+ * Deduplicates concurrent loads of the same row, so that one load serves every thread waiting for that row.
+ * Optionally, single row loads of different threads that arrive within a short window are merged into a single
+ * batch load.
+ * @param <V> type of a loaded row
+ */
+class CoalescingRowLoader<V> {
+
+  /**
+   * Loads a batch of rows; rows that could not be loaded are absent in the result.
+   */
+  interface Loader<V> {
+    Map<Integer, V> load(int[] rows);
+  }
+
+  private final Loader<V> loader;
+  private final ConcurrentMap<Integer, SettableFuture<V>> inFlight = Maps.newConcurrentMap();
+  private final Object lock = new Object();
+  private List<Integer> pending = Lists.newArrayList();
+  private volatile long windowNanos = 0;
+
+  CoalescingRowLoader(Loader<V> loader) {
+    this.loader = loader;
+  }
+
+  long getWindow(TimeUnit unit) {
+    return unit.convert(windowNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void setWindow(long window, TimeUnit unit) {
+    this.windowNanos = unit.toNanos(window);
+  }
+
+  /**
+   * @param row the row to be loaded
+   * @return the row, or null if it could not be loaded
+   */
+  V load(int row) {
+    SettableFuture<V> future = SettableFuture.create();
+    SettableFuture<V> existing = inFlight.putIfAbsent(row, future);
+    if (existing != null) {
+      return await(existing);
+    }
+
+    long window = windowNanos;
+    if (window <= 0) {
+      complete(new int[]{row});
+    } else {
+      boolean leader;
+      synchronized (lock) {
+        leader = pending.isEmpty();
+        pending.add(row);
+      }
+      //the first thread of a window waits for the others, and then loads the rows of all
+      if (leader) {
+        Uninterruptibles.sleepUninterruptibly(window, TimeUnit.NANOSECONDS);
+        List<Integer> batch;
+        synchronized (lock) {
+          batch = pending;
+          pending = Lists.newArrayList();
+        }
+        complete(Ints.toArray(batch));
+      }
+    }
+    return await(future);
+  }
+
+  /**
+   * @param rows distinct rows to be loaded
+   * @return loaded rows; rows that could not be loaded are absent
+   */
+  Map<Integer, V> loadAll(int[] rows) {
+    Map<Integer, SettableFuture<V>> waiting = Maps.newHashMap();
+    int[] own = new int[rows.length];
+    int numOwn = 0;
+    for (int row : rows) {
+      SettableFuture<V> future = SettableFuture.create();
+      SettableFuture<V> existing = inFlight.putIfAbsent(row, future);
+      if (existing == null) {
+        own[numOwn++] = row;
+      } else {
+        waiting.put(row, existing);
+      }
+    }
+
+    Map<Integer, V> loaded = Maps.newHashMapWithExpectedSize(rows.length);
+    if (numOwn > 0) {
+      loaded.putAll(complete(Arrays.copyOf(own, numOwn)));
+    }
+    for (Map.Entry<Integer, SettableFuture<V>> entry : waiting.entrySet()) {
+      V v = await(entry.getValue());
+      if (v != null) {
+        loaded.put(entry.getKey(), v);
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * Loads rows, and completes the futures of the threads waiting for them: with the loaded rows, or with the failure
+   * of the load
+   */
+  private Map<Integer, V> complete(int[] rows) {
+    Map<Integer, V> loaded;
+    try {
+      loaded = loader.load(rows);
+    } catch (Throwable t) {
+      for (int row : rows) {
+        SettableFuture<V> future = inFlight.remove(row);
+        if (future != null) {
+          future.setException(t);
+        }
+      }
+      throw Throwables.propagate(t);
+    }
+    for (int row : rows) {
+      SettableFuture<V> future = inFlight.remove(row);
+      if (future != null) {
+        future.set(loaded.get(row));
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * @throws RuntimeException the failure of the load, if the row could not be loaded
+   */
+  private static <V> V await(SettableFuture<V> future) {
+    try {
+      return Uninterruptibles.getUninterruptibly(future);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+}
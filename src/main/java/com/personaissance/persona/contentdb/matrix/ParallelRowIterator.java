@@ -0,0 +1,146 @@
+package com.personaissance.persona.contentdb.matrix;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import org.apache.mahout.math.MatrixSlice;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@author} gcapan
+ * Splits a row range into partitions, iterates each partition on an executor, and hands the rows over to the
+ * consumer through a bounded queue. Rows are not returned in order.
+ * <p/>
+ * The first failure of a partition is thrown by the next call of the consumer, and stops the other partitions. A
+ * consumer that stops before the end should {@link #close()} the iterator, so that the partitions stop, rather than
+ * wait for queue space forever.
+ */
+public final class ParallelRowIterator extends AbstractIterator<MatrixSlice> implements Closeable {
+
+  /**
+   * A source of rows within a range
+   */
+  interface RangeIterable {
+    /**
+     * @param firstRow first row of the range, inclusive
+     * @param lastRow last row of the range, inclusive
+     * @return rows in the range, ordered by row index
+     */
+    Iterator<MatrixSlice> iterateRows(int firstRow, int lastRow);
+  }
+
+  /**
+   * Put by a finished partition to wake the consumer up; not required for termination, so it is dropped if the
+   * queue is full
+   */
+  private static final MatrixSlice END_OF_PARTITION = new MatrixSlice(null, -1);
+  /**
+   * Interval at which blocked producers and the consumer check for cancellation, failures and finished partitions
+   */
+  private static final long POLL_MILLIS = 100;
+
+  private final BlockingQueue<MatrixSlice> queue;
+  private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+  private final AtomicInteger runningPartitions;
+  private volatile boolean cancelled = false;
+
+  /**
+   * @param source source of the rows of a partition
+   * @param firstRow first row of the range, inclusive
+   * @param lastRow last row of the range, inclusive; an empty iterator if it is less than firstRow
+   * @param partitions number of partitions the range is split into
+   * @param executor executor that iterates the partitions
+   * @param capacity maximum number of rows buffered
+   * @throws RejectedExecutionException if a partition is rejected by the executor; partitions started before it are
+   * stopped
+   */
+  ParallelRowIterator(final RangeIterable source, int firstRow, int lastRow, int partitions,
+                      ExecutorService executor, int capacity) {
+    Preconditions.checkArgument(partitions > 0, "partitions should be positive");
+    this.queue = new ArrayBlockingQueue<MatrixSlice>(capacity);
+    long rangeSize = Math.max(0, (long) lastRow - firstRow + 1);
+    partitions = (int) Math.min(partitions, rangeSize);
+    this.runningPartitions = new AtomicInteger(partitions);
+    long partitionSize = partitions == 0 ? 0 : (rangeSize + partitions - 1) / partitions;
+    for (int p = 0; p < partitions; p++) {
+      final int first = (int) (firstRow + p * partitionSize);
+      final int last = (int) Math.min(lastRow, first + partitionSize - 1);
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              Iterator<MatrixSlice> rows = source.iterateRows(first, last);
+              while (!stopped() && rows.hasNext()) {
+                MatrixSlice row = rows.next();
+                while (!queue.offer(row, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                  if (stopped()) {
+                    return;
+                  }
+                }
+              }
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              failure.compareAndSet(null, new IllegalStateException(e));
+            } catch (RuntimeException e) {
+              failure.compareAndSet(null, e);
+            } finally {
+              runningPartitions.decrementAndGet();
+              queue.offer(END_OF_PARTITION);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        close();
+        throw e;
+      }
+    }
+  }
+
+  private boolean stopped() {
+    return cancelled || failure.get() != null;
+  }
+
+  @Override
+  protected MatrixSlice computeNext() {
+    try {
+      while (!cancelled) {
+        RuntimeException e = failure.get();
+        if (e != null) {
+          close();
+          throw e;
+        }
+        //rows are queued before their partition is counted as finished
+        if (runningPartitions.get() == 0 && queue.isEmpty()) {
+          return endOfData();
+        }
+        MatrixSlice slice = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (slice != null && slice != END_OF_PARTITION) {
+          return slice;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      close();
+      throw new IllegalStateException(e);
+    }
+    return endOfData();
+  }
+
+  /**
+   * Stops the partitions, and discards buffered rows; the iterator has no more rows afterwards
+   */
+  @Override
+  public void close() {
+    cancelled = true;
+    queue.clear();
+  }
+}
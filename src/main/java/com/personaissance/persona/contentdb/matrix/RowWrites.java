@@ -0,0 +1,180 @@
+package com.personaissance.persona.contentdb.matrix;
+
+import com.personaissance.persona.contentdb.matrix.cache.RowCache;
+import com.google.common.base.Optional;
+import com.google.common.collect.Maps;
+import org.apache.mahout.math.Vector;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@author} gcapan
+ * Rows written through a {@link SolrFieldMatrix} whose documents may not be searchable yet. Written rows are pinned
+ * in front of the row cache, so that they are neither evicted nor overwritten by documents fetched from Solr, until
+ * the writes are released after a commit, or until the visibility delay of a write has passed. A released row is
+ * moved into the row cache.
+ * <p/>
+ * Each pin carries the sequence number of its write, so that a release covers the writes made before it, and not a
+ * later write of the same row. A pin whose visibility delay has passed is released by the next read of its row, or
+ * by a periodic sweep on writes, never by a background cleanup that could lag behind reads.
+ * <p/>
+ * A fetched row is cached only if it is not pinned, and no write was released since its fetch started; otherwise
+ * the fetch may have read a document older than the written row.
+ */
+class RowWrites {
+
+  /**
+   * Number of writes between sweeps of pins whose visibility delay has passed
+   */
+  private static final int SWEEP_INTERVAL = 1024;
+
+  private static final class Pin {
+    private final long sequence;
+    private final long writtenAt;
+    private final Optional<Vector> row;
+
+    private Pin(long sequence, Optional<Vector> row) {
+      this.sequence = sequence;
+      this.writtenAt = System.nanoTime();
+      this.row = row;
+    }
+  }
+
+  private final SolrFieldMatrix matrix;
+  private final ConcurrentMap<Integer, Pin> pinned = Maps.newConcurrentMap();
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicLong releases = new AtomicLong();
+  private volatile long visibilityNanos;
+
+  RowWrites(SolrFieldMatrix matrix, long visibility, TimeUnit unit) {
+    this.matrix = matrix;
+    setVisibility(visibility, unit);
+  }
+
+  long getVisibility(TimeUnit unit) {
+    return unit.convert(visibilityNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param visibility time a written row is pinned for, unless released earlier; applies to rows pinned so far, too
+   * @param unit unit of visibility
+   */
+  void setVisibility(long visibility, TimeUnit unit) {
+    this.visibilityNanos = unit.toNanos(visibility);
+  }
+
+  /**
+   * @return the release count, to be read before a fetch starts, and passed to {@link #fetched(int, Vector, long)}
+   */
+  long started() {
+    return releases.get();
+  }
+
+  /**
+   * @return sequence number of the last write, to be read before a commit, and passed to {@link #release(long)}
+   */
+  long sequence() {
+    return sequence.get();
+  }
+
+  /**
+   * @param row the row
+   * @return the written row if the row is pinned, absent if it was written but could not be vectorized locally; null
+   * if the row is not pinned
+   */
+  Optional<Vector> get(int row) {
+    Pin pin = pinned.get(row);
+    if (pin == null) {
+      return null;
+    }
+    if (expired(pin)) {
+      release(row, pin);
+      return null;
+    }
+    return pin.row;
+  }
+
+  /**
+   * @param row the row
+   * @param v the written row, or null if the document could not be vectorized locally
+   */
+  void write(int row, Vector v) {
+    long written = sequence.incrementAndGet();
+    pinned.put(row, new Pin(written, Optional.fromNullable(v)));
+    if (written % SWEEP_INTERVAL == 0) {
+      for (Map.Entry<Integer, Pin> pin : pinned.entrySet()) {
+        if (expired(pin.getValue())) {
+          release(pin.getKey(), pin.getValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * Unpins a row whose write failed, and drops it from the row cache
+   */
+  void discard(int row) {
+    pinned.remove(row);
+    releases.incrementAndGet();
+    matrix.getRowCache().invalidate(row);
+  }
+
+  /**
+   * Releases written rows, once their documents are searchable
+   * @param upTo sequence number of the last write released, see {@link #sequence()}
+   */
+  void release(long upTo) {
+    for (Map.Entry<Integer, Pin> pin : pinned.entrySet()) {
+      if (pin.getValue().sequence <= upTo) {
+        release(pin.getKey(), pin.getValue());
+      }
+    }
+  }
+
+  /**
+   * Caches a fetched row, unless a write may be newer than it
+   * @param row the row
+   * @param v the fetched row
+   * @param started {@link #started()}, read before the fetch
+   * @return the row to be viewed: the written row if the row is pinned, the fetched row otherwise
+   */
+  Vector fetched(int row, Vector v, long started) {
+    Optional<Vector> written = get(row);
+    if (written != null) {
+      return written.or(v);
+    }
+    if (releases.get() != started) {
+      return v;
+    }
+    RowCache rowCache = matrix.getRowCache();
+    rowCache.put(row, v);
+    //a write may have been pinned, or released, while the row was put
+    if (releases.get() != started || get(row) != null) {
+      rowCache.invalidate(row);
+    }
+    return v;
+  }
+
+  private boolean expired(Pin pin) {
+    return System.nanoTime() - pin.writtenAt >= visibilityNanos;
+  }
+
+  /**
+   * Unpins a row, unless it was written again since the pin was read, and moves the written row into the row cache
+   */
+  private void release(int row, Pin pin) {
+    if (!pinned.remove(row, pin)) {
+      return;
+    }
+    releases.incrementAndGet();
+    RowCache rowCache = matrix.getRowCache();
+    if (pin.row.isPresent()) {
+      rowCache.put(row, pin.row.get());
+    } else {
+      rowCache.invalidate(row);
+    }
+  }
+}
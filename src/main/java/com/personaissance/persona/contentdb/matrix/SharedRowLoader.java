@@ -0,0 +1,131 @@
+package com.personaissance.persona.contentdb.matrix;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.mahout.math.Vector;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocumentList;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@author} gcapan
+ * Fetches the rows of several {@link SolrFieldMatrix}es, which read stored fields of the same Solr server and id
+ * field, with one query listing all of their fields, instead of one query per field. Each matrix vectorizes and
+ * caches its rows as if it had fetched them itself.
+ * <p/>
+ * Like a single matrix, the group fetches concurrent misses of the same row once, and merges single row misses that
+ * arrive within the batch window of its first matrix, see {@link SolrFieldMatrix#setBatchWindow(long, TimeUnit)}.
+ */
+class SharedRowLoader {
+  private final SolrFieldMatrix[] matrices;
+  private final String[] fields;
+  private final CoalescingRowLoader<Vector[]> rowLoader =
+     new CoalescingRowLoader<Vector[]>(new CoalescingRowLoader.Loader<Vector[]>() {
+       @Override
+       public Map<Integer, Vector[]> load(int[] rows) {
+         return loadRows(rows);
+       }
+     });
+
+  SharedRowLoader(SolrFieldMatrix[] matrices) {
+    this.matrices = matrices;
+    fields = new String[matrices.length + 1];
+    fields[0] = matrices[0].getIdField();
+    for (int i = 0; i < matrices.length; i++) {
+      fields[i + 1] = matrices[i].getFieldName();
+    }
+  }
+
+  /**
+   * Rows cached by all matrices are not fetched; others are fetched with one query per
+   * {@link SolrFieldMatrix#getBatchSize()} of the first matrix.
+   * @param rows rows to be viewed
+   * @return rows of each matrix, aligned with rows
+   * @throws IllegalStateException if a batch could not be fetched
+   */
+  Vector[][] viewRows(int[] rows) {
+    Vector[][] vectors = new Vector[matrices.length][rows.length];
+    int[] missing = new int[rows.length];
+    int numMissing = 0;
+    Set<Integer> seen = Sets.newHashSet();
+    for (int r = 0; r < rows.length; r++) {
+      boolean cached = true;
+      for (int i = 0; i < matrices.length; i++) {
+        vectors[i][r] = matrices[i].viewCachedRow(rows[r]);
+        cached &= vectors[i][r] != null;
+      }
+      if (!cached && seen.add(rows[r])) {
+        missing[numMissing++] = rows[r];
+      }
+    }
+    if (numMissing == 0) {
+      return vectors;
+    }
+
+    Map<Integer, Vector[]> fetched;
+    if (numMissing == 1) {
+      rowLoader.setWindow(matrices[0].getBatchWindow(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+      fetched = Maps.newHashMap();
+      Vector[] row = rowLoader.load(missing[0]);
+      if (row != null) {
+        fetched.put(missing[0], row);
+      }
+    } else {
+      fetched = rowLoader.loadAll(Arrays.copyOf(missing, numMissing));
+    }
+    for (int r = 0; r < rows.length; r++) {
+      Vector[] row = fetched.get(rows[r]);
+      for (int i = 0; row != null && i < matrices.length; i++) {
+        if (vectors[i][r] == null) {
+          vectors[i][r] = row[i];
+        }
+      }
+    }
+    return vectors;
+  }
+
+  private Map<Integer, Vector[]> loadRows(int[] rows) {
+    SolrFieldMatrix first = matrices[0];
+    Map<Integer, Vector[]> fetched = Maps.newHashMapWithExpectedSize(rows.length);
+    for (int from = 0; from < rows.length; from += first.getBatchSize()) {
+      int to = Math.min(from + first.getBatchSize(), rows.length);
+      try {
+        fetchRows(rows, from, to, fetched);
+      } catch (SolrServerException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return fetched;
+  }
+
+  private void fetchRows(int[] ids, int from, int to, Map<Integer, Vector[]> fetched) throws SolrServerException {
+    SolrFieldMatrix first = matrices[0];
+    long[] started = new long[matrices.length];
+    for (int m = 0; m < matrices.length; m++) {
+      started[m] = matrices[m].writesStarted();
+    }
+    SolrQuery query = new SolrQuery();
+    query.setFacet(false).
+       setHighlight(false).
+       setRows(to - from).
+       setFields(fields).
+       setQuery(first.idsQuery(ids, from, to));
+    SolrDocumentList documents = first.getServer().query(query).getResults();
+    for (int i = from; i < to; i++) {
+      fetched.put(ids[i], new Vector[matrices.length]);
+    }
+    for (int m = 0; m < matrices.length; m++) {
+      for (Map.Entry<Integer, Vector> row : matrices[m].cacheRows(ids, from, to, documents, started[m]).entrySet()) {
+        Vector[] vectors = fetched.get(row.getKey());
+        if (vectors != null) {
+          vectors[m] = row.getValue();
+        }
+      }
+    }
+  }
+}
@@ -1,31 +1,61 @@
 package com.personaissance.persona.contentdb.matrix;
 
+import com.personaissance.persona.contentdb.CandidateFilter;
+import com.personaissance.persona.contentdb.CandidateSet;
+import com.personaissance.persona.contentdb.NumericColumn;
 import com.personaissance.persona.contentdb.TYPE;
 import com.personaissance.persona.contentdb.exception.ContentException;
-import com.personaissance.persona.contentdb.solrj.tv.TermVectorResponse;
+import com.personaissance.persona.contentdb.matrix.cache.BoundedRowCache;
+import com.personaissance.persona.contentdb.matrix.cache.CandidateCache;
+import com.personaissance.persona.contentdb.matrix.cache.RowCache;
+import com.personaissance.persona.contentdb.matrix.cache.RowSnapshot;
+import com.personaissance.persona.contentdb.matrix.text.DocumentFrequencies;
+import com.personaissance.persona.contentdb.matrix.text.FeatureHasher;
+import com.personaissance.persona.contentdb.matrix.text.PatternTextAnalyzer;
+import com.personaissance.persona.contentdb.matrix.text.TextAnalyzer;
+import com.personaissance.persona.contentdb.solrj.export.ExportResponseParser;
+import com.personaissance.persona.contentdb.solrj.tv.TermVectorParser;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.math.*;
 import org.apache.solr.client.solrj.SolrQuery;
-import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.request.LukeRequest;
-import org.apache.solr.client.solrj.response.LukeResponse;
+import org.apache.solr.client.solrj.StreamingResponseCallback;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.response.FacetField;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.FacetParams;
 import org.apache.solr.common.params.TermVectorParams;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * {@author} gcapan Casts a Solr Field to a read-only matrix, where one document represents a row, and indexed by the
@@ -40,8 +70,66 @@ public class SolrFieldMatrix extends AbstractMatrix {
   private SolrServer server;
   private int rows;
   private Map<String, Integer> columnLabelBindings;
-  private final HashSet<Integer> cached = Sets.newHashSet();
-  private Matrix cache;
+  private volatile String[] columnLabels;
+  /**
+   * Number of columns bound to labels; less than the number of columns if the vocabulary is growable
+   */
+  private volatile int vocabularySize;
+  private final Object vocabularyLock = new Object();
+  private VocabularyOptions vocabularyOptions = new VocabularyOptions();
+  private DocumentFrequencies documentFrequencies;
+  private FeatureHasher hasher = null;
+  private TextAnalyzer analyzer = PatternTextAnalyzer.DEFAULT;
+  private boolean localTermVectors = false;
+  private boolean frequencyWeighted = false;
+  private String exportHandler = null;
+  private boolean filterCandidates = false;
+  private boolean docValuesIds = false;
+  private RowCache rowCache = BoundedRowCache.withMaximumNonZeros(DEFAULT_CACHE_NON_ZEROS);
+  private volatile RowSnapshot snapshot = null;
+  /**
+   * Rows written since the snapshot was set, which are not read from the snapshot
+   */
+  private final Set<Integer> writtenSinceSnapshot =
+     Collections.newSetFromMap(Maps.<Integer, Boolean>newConcurrentMap());
+  private CandidateCache candidateCache = null;
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private final RowWrites writes = new RowWrites(this, DEFAULT_WRITE_VISIBILITY_SECONDS, TimeUnit.SECONDS);
+  private final CoalescingRowLoader<Vector> rowLoader =
+     new CoalescingRowLoader<Vector>(new CoalescingRowLoader.Loader<Vector>() {
+       @Override
+       public Map<Integer, Vector> load(int[] rows) {
+         return loadRows(rows);
+       }
+     });
+
+  /**
+   * Default number of ids fetched by a single query in {@link #viewRows(int[])}. Kept below Solr's default
+   * maxBooleanClauses (1024), since ids are sent as a disjunction.
+   */
+  public static final int DEFAULT_BATCH_SIZE = 512;
+
+  /**
+   * Number of documents Solr returns for a query that does not set rows
+   */
+  private static final int SOLR_DEFAULT_ROWS = 10;
+
+  /**
+   * Default bound of the row cache, in number of non-zero elements of cached rows.
+   */
+  public static final long DEFAULT_CACHE_NON_ZEROS = 1 << 22;
+
+  /**
+   * Default time a written row is pinned for, unless its write is released earlier, see
+   * {@link #setWriteVisibility(long, TimeUnit)}
+   */
+  public static final long DEFAULT_WRITE_VISIBILITY_SECONDS = 60;
+
+  /**
+   * Minimum number of documents per page in {@link #loadNumericColumn()}; ids are not sent, so pages can be larger
+   * than batches.
+   */
+  private static final int COLUMN_PAGE_SIZE = 8192;
 
   public SolrFieldMatrix(SolrServer server, String idField, String field, TYPE type,
                          boolean multivalued) throws IOException, SolrServerException {
@@ -61,6 +149,14 @@ public class SolrFieldMatrix extends AbstractMatrix {
   public SolrFieldMatrix(SolrServer server, String idField, String field, boolean multivalued, String spatialField,
                          TYPE type) throws IOException,
      SolrServerException {
+    this(server, idField, field, multivalued, spatialField, type, new VocabularyOptions());
+  }
+
+  /**
+   * @param vocabularyOptions how the columns of a TEXT or MULTINOMIAL field are read; ignored for other fields
+   */
+  public SolrFieldMatrix(SolrServer server, String idField, String field, boolean multivalued, String spatialField,
+                         TYPE type, VocabularyOptions vocabularyOptions) throws IOException, SolrServerException {
     super(Integer.MAX_VALUE, 0);
     this.idField = idField;
     this.field = field;
@@ -68,6 +164,7 @@ public class SolrFieldMatrix extends AbstractMatrix {
     this.server = server;
     this.spatialField = spatialField;
     this.multivalued = multivalued;
+    this.vocabularyOptions = Preconditions.checkNotNull(vocabularyOptions);
     initialize();
   }
 
@@ -77,40 +174,418 @@ public class SolrFieldMatrix extends AbstractMatrix {
     if (type.equals(TYPE.BOOLEAN) || type.equals(TYPE.NUMERICAL)) {
       columnLabelBindings.put(field, 0);
       setColumnLabelBindings(columnLabelBindings);
+      columnLabels = new String[]{field};
       columns = 1;
-      cache = new SparseMatrix(Integer.MAX_VALUE, 1);
-      cache.setColumnLabelBindings(columnLabelBindings);
+    } else if (vocabularyOptions.isHashed()) {
+      //no labels; columns are found by hashing
+      hasher = new FeatureHasher(vocabularyOptions.getHashBits(), vocabularyOptions.getHashSeed());
+      setColumnLabelBindings(columnLabelBindings);
+      columns = hasher.columns();
     } else if (type.equals(TYPE.TEXT) || type.equals(TYPE.MULTINOMIAL)) {
-      LukeRequest lukeRequest = new LukeRequest();
-      lukeRequest.setNumTerms(1000);
-      lukeRequest.setFields(Lists.newArrayList(field));
-      lukeRequest.setMethod(SolrRequest.METHOD.GET);
-
-
-      final LukeResponse response = lukeRequest.process(server);
-      int i = 0;
-      for (Map.Entry<String, Integer> histogramEntry : response.getFieldInfo().get(field).getTopTerms()) {
-        String word = histogramEntry.getKey();
-        columnLabelBindings.put(word, i++);
-
+      //bindings are read concurrently while a growable vocabulary is appended to
+      columnLabelBindings = Maps.newConcurrentMap();
+      int maxSize = vocabularyOptions.getMaxSize();
+      if (vocabularyOptions.getCapacity() > 0) {
+        maxSize = Math.min(maxSize, vocabularyOptions.getCapacity());
+      }
+      Map<String, Integer> vocabulary = readVocabulary(maxSize);
+      columns = vocabularyOptions.isGrowable() ? vocabularyOptions.getCapacity() : vocabulary.size();
+      String[] labels = new String[columns];
+      int[] frequencies = new int[columns];
+      for (Map.Entry<String, Integer> term : vocabulary.entrySet()) {
+        columnLabelBindings.put(term.getKey(), vocabularySize);
+        labels[vocabularySize] = term.getKey();
+        frequencies[vocabularySize] = term.getValue();
+        vocabularySize++;
       }
-      columns = i;
+      columnLabels = labels;
+      documentFrequencies = new DocumentFrequencies(columnLabelBindings, frequencies,
+         new DocumentFrequencies.Source() {
+           @Override
+           public Map<String, Integer> load() throws Exception {
+             //existing columns, and the columns a growable vocabulary can still append
+             Map<String, Integer> vocabulary = readVocabulary(columnSize());
+             if (vocabularyOptions.isGrowable()) {
+               appendVocabulary(vocabulary.keySet());
+             }
+             return vocabulary;
+           }
+         });
       setColumnLabelBindings(columnLabelBindings);
-      cache = new SparseMatrix(Integer.MAX_VALUE, columns);
-      cache.setColumnLabelBindings(columnLabelBindings);
     }
     this.columns = columns;
   }
 
+  /**
+   * Pages through the facets of the field, in decreasing order of document frequency. Terms are pruned by the
+   * {@link VocabularyOptions}, except that the maximum document frequency is not applied to existing columns.
+   * @param maxSize maximum number of terms read
+   * @return terms, with their document frequencies
+   */
+  private Map<String, Integer> readVocabulary(int maxSize) throws SolrServerException {
+    Map<String, Integer> vocabulary = Maps.newLinkedHashMap();
+    int pageSize = vocabularyOptions.getPageSize();
+    for (int offset = 0; vocabulary.size() < maxSize; offset += pageSize) {
+      SolrQuery query = new SolrQuery("*:*");
+      query.setRows(0).
+         setFacet(true).
+         addFacetField(field).
+         setFacetMinCount(vocabularyOptions.getMinDocumentFrequency()).
+         setFacetLimit(pageSize).
+         setFacetSort(FacetParams.FACET_SORT_COUNT).
+         setParam(FacetParams.FACET_OFFSET, Integer.toString(offset));
+      QueryResponse response = server.query(query);
+      double maxDocumentFrequency =
+         response.getResults().getNumFound() * vocabularyOptions.getMaxDocumentFrequencyRatio();
+      List<FacetField.Count> counts = response.getFacetField(field).getValues();
+      if (counts == null) {
+        break;
+      }
+      for (FacetField.Count count : counts) {
+        if (vocabulary.size() < maxSize &&
+           (count.getCount() <= maxDocumentFrequency || columnLabelBindings.containsKey(count.getName()))) {
+          vocabulary.put(count.getName(), (int) count.getCount());
+        }
+      }
+      if (counts.size() < pageSize) {
+        break;
+      }
+    }
+    return vocabulary;
+  }
+
+  /**
+   * Binds new terms to the reserved columns of a growable vocabulary, until the capacity is reached
+   */
+  private void appendVocabulary(Iterable<String> terms) {
+    synchronized (vocabularyLock) {
+      String[] labels = columnLabels;
+      int size = vocabularySize;
+      for (String term : terms) {
+        if (size == labels.length) {
+          break;
+        }
+        if (!columnLabelBindings.containsKey(term)) {
+          labels[size] = term;
+          columnLabelBindings.put(term, size);
+          size++;
+        }
+      }
+      vocabularySize = size;
+    }
+  }
+
+  /**
+   * @return number of columns bound to terms; for a growable vocabulary, columns beyond are reserved
+   */
+  public int getVocabularySize() {
+    return vocabularySize;
+  }
+
+  /**
+   * Reloads the document frequencies of the vocabulary, and appends new terms if the vocabulary is growable. Done
+   * periodically in the background if a refresh interval is set on {@link #getDocumentFrequencies()}. At most as many
+   * terms as the columns of the matrix are read, in decreasing order of document frequency; existing terms beyond
+   * keep their previous frequencies.
+   * @throws ContentException
+   */
+  public void refreshVocabulary() throws ContentException {
+    Preconditions.checkState(documentFrequencies != null, "%s has no vocabulary", field);
+    try {
+      documentFrequencies.refresh();
+    } catch (Exception e) {
+      throw new ContentException(e);
+    }
+  }
+
   public String getFieldName(){
     return field;
   }
+
+  /**
+   * @return the hasher of hashed columns, or null if columns are bound to a vocabulary
+   */
+  public FeatureHasher getHasher() {
+    return hasher;
+  }
+
+  public String getIdField() {
+    return idField;
+  }
+
+  public TextAnalyzer getAnalyzer() {
+    return analyzer;
+  }
+
+  /**
+   * @param analyzer the analyzer used to vectorize text on the client side; should match the analyzer of the field
+   * in the schema
+   */
+  public void setAnalyzer(TextAnalyzer analyzer) {
+    this.analyzer = Preconditions.checkNotNull(analyzer);
+  }
+
+  public boolean isFrequencyWeighted() {
+    return frequencyWeighted;
+  }
+
+  /**
+   * @param frequencyWeighted whether a category repeated in a multivalued field is weighted by its count, rather
+   * than 1
+   */
+  public void setFrequencyWeighted(boolean frequencyWeighted) {
+    this.frequencyWeighted = frequencyWeighted;
+  }
+
+  public boolean isDocValuesIds() {
+    return docValuesIds;
+  }
+
+  /**
+   * @param docValuesIds whether candidate ids are read with a {@code field()} function, from the docValues (or the
+   * field cache) of the id field, rather than from its stored values; which saves decompressing stored fields of
+   * every candidate
+   */
+  public void setDocValuesIds(boolean docValuesIds) {
+    this.docValuesIds = docValuesIds;
+  }
+
+  public boolean isFilterCandidates() {
+    return filterCandidates;
+  }
+
+  /**
+   * @param filterCandidates whether {@link #getCandidates(String, int, int)} and
+   * {@link #getCandidates(String, double, double, int)} match keywords, and proximities, with filter queries on all
+   * documents, rather than with a scored query. Filters are then cached by Solr's filterCache, and candidates are
+   * returned in index order, so that a text keyword yields the first matching documents rather than the most
+   * relevant ones.
+   */
+  public void setFilterCandidates(boolean filterCandidates) {
+    this.filterCandidates = filterCandidates;
+  }
+
+  public String getExportHandler() {
+    return exportHandler;
+  }
+
+  /**
+   * Streams rows in {@link #iterateRows()} and {@link #iterateRows(int, int)} from the docValues of the field, with
+   * one request to an export handler (e.g. /export) per {@link #getBatchSize()} ids, rather than paging through
+   * stored fields. The id field and the field must have docValues. Not supported for text fields.
+   * @param exportHandler path of the export handler, or null to page through stored fields
+   */
+  public void setExportHandler(String exportHandler) {
+    Preconditions.checkState(exportHandler == null || type != TYPE.TEXT, "text fields have no docValues");
+    this.exportHandler = exportHandler;
+  }
+
+  public boolean isLocalTermVectors() {
+    return localTermVectors;
+  }
+
+  /**
+   * Whether rows of a text field are computed on the client side, from the stored text of the field, rather than
+   * from the term vectors of the /tvrh handler. Rows of many documents are then fetched by a single plain query, and
+   * weighted by tf/df against {@link #getDocumentFrequencies()}. Requires a stored field.
+   * @param localTermVectors whether term vectors are computed locally
+   */
+  public void setLocalTermVectors(boolean localTermVectors) {
+    Preconditions.checkState(!localTermVectors || type == TYPE.TEXT, "local term vectors are only for text fields");
+    this.localTermVectors = localTermVectors;
+  }
+
+  /**
+   * @return document frequencies of the columns of a TEXT or MULTINOMIAL field, read at initialization and refreshed
+   * at the configured interval, along with the vocabulary; null for other fields
+   */
+  public DocumentFrequencies getDocumentFrequencies() {
+    return documentFrequencies;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @param batchSize max number of ids that {@link #viewRows(int[])} fetches with a single Solr query
+   */
+  public void setBatchSize(int batchSize) {
+    Preconditions.checkArgument(batchSize > 0, "batchSize should be positive");
+    this.batchSize = batchSize;
+  }
+
+  public long getBatchWindow(TimeUnit unit) {
+    return rowLoader.getWindow(unit);
+  }
+
+  /**
+   * Cache misses of concurrent {@link #viewRow(int)} calls that arrive within the window are fetched with a single
+   * query. The first miss of a window waits for the whole window, so this trades latency for fewer Solr queries.
+   * Concurrent misses of the same row are always fetched once, regardless of the window. Matrices whose rows are
+   * fetched together by a {@link SolrMatrix} share the window of the first matrix of their group.
+   * @param window time to wait for other misses, 0 to disable batching (default)
+   * @param unit unit of window
+   */
+  public void setBatchWindow(long window, TimeUnit unit) {
+    Preconditions.checkArgument(window >= 0, "window should be non-negative");
+    rowLoader.setWindow(window, unit);
+  }
+
+  public RowCache getRowCache() {
+    return rowCache;
+  }
+
+  public long getWriteVisibility(TimeUnit unit) {
+    return writes.getVisibility(unit);
+  }
+
+  /**
+   * Rows written by {@link #updateRow(int, SolrInputDocument)} are pinned, in front of the row cache, until their
+   * documents are searchable: until {@link #releaseWrites()} is called after a commit, or until the visibility
+   * delay has passed, which should cover the commitWithin or autoSoftCommit interval of the index. Rows fetched
+   * from Solr do not replace pinned rows.
+   * @param visibility time a written row is pinned for
+   * @param unit unit of visibility
+   */
+  public void setWriteVisibility(long visibility, TimeUnit unit) {
+    Preconditions.checkArgument(visibility > 0, "visibility should be positive");
+    writes.setVisibility(visibility, unit);
+  }
+
+  /**
+   * Moves rows written so far into the row cache, and invalidates cached candidate sets; to be called once their
+   * documents are searchable, after a commit
+   */
+  public void releaseWrites() {
+    releaseWrites(writes.sequence());
+  }
+
+  /**
+   * @return sequence number of the last row written, to be read before a commit, see {@link #releaseWrites(long)}
+   */
+  long writeSequence() {
+    return writes.sequence();
+  }
+
+  /**
+   * Like {@link #releaseWrites()}, releases only rows written up to a sequence number, so that rows written while
+   * a commit was running stay pinned
+   * @param sequence {@link #writeSequence()}, read before the commit
+   */
+  void releaseWrites(long sequence) {
+    writes.release(sequence);
+    invalidateCandidates();
+  }
+
+  /**
+   * Invalidates cached candidate sets, if any
+   */
+  void invalidateCandidates() {
+    CandidateCache candidateCache = this.candidateCache;
+    if (candidateCache != null) {
+      candidateCache.invalidateAll();
+    }
+  }
+
+  /**
+   * Unpins a written row whose document could not be written, so that it is fetched again
+   * @param row the row
+   */
+  void discardWrite(int row) {
+    writes.discard(row);
+  }
+
+  public RowSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Sets a read-only tier in front of Solr: rows that are not cached are looked up in the snapshot before they are
+   * fetched from Solr. Rows written through this matrix after the snapshot is set are never read from it.
+   * @param snapshot a snapshot with the same columns as this matrix, null to remove the snapshot
+   */
+  public void setSnapshot(RowSnapshot snapshot) {
+    if (snapshot != null) {
+      Preconditions.checkArgument(snapshot.columnSize() == columnSize() &&
+         snapshot.getColumnLabelBindings().equals(columnLabelBindings),
+         "Snapshot columns do not match the columns of " + field);
+    }
+    writtenSinceSnapshot.clear();
+    this.snapshot = snapshot;
+  }
+
+  /**
+   * Maps a snapshot written by {@link #writeSnapshot(File, boolean)}, and uses it as in {@link #setSnapshot}
+   * @param file the snapshot file
+   * @throws IOException
+   */
+  public void loadSnapshot(File file) throws IOException {
+    setSnapshot(RowSnapshot.open(file));
+  }
+
+  /**
+   * Writes the column label bindings and the rows currently cached to a snapshot file, see {@link RowSnapshot}
+   * @param file the snapshot file
+   * @param doublePrecision whether values are written as doubles, rather than floats
+   * @throws IOException
+   */
+  public void writeSnapshot(File file, boolean doublePrecision) throws IOException {
+    final Map<Integer, Vector> rows = rowCache.asMap();
+    final int[] ids = Ints.toArray(rows.keySet());
+    Arrays.sort(ids);
+    RowSnapshot.write(file, columnSize(), columnLabelBindings, new AbstractIterator<MatrixSlice>() {
+      private int i = 0;
+
+      @Override
+      protected MatrixSlice computeNext() {
+        while (i < ids.length) {
+          int id = ids[i++];
+          Vector v = rows.get(id);
+          if (v != null) {
+            return new MatrixSlice(v, id);
+          }
+        }
+        return endOfData();
+      }
+    }, doublePrecision);
+  }
+
+  /**
+   * Replaces the row store; rows cached so far are dropped.
+   * @param rowCache the cache that keeps the rows fetched from Solr
+   */
+  public void setRowCache(RowCache rowCache) {
+    this.rowCache = Preconditions.checkNotNull(rowCache);
+  }
+
+  public CandidateCache getCandidateCache() {
+    return candidateCache;
+  }
+
+  /**
+   * Caches the candidate sets of {@link #getCandidates(SolrQuery, int, int)} and its variants, including
+   * {@link #mostSimilars(int, int)}; cached sets are shared, and should not be modified by callers. The cache is
+   * invalidated when writes are released by {@link #releaseWrites()}, after a commit, and may be shared with other
+   * matrices. Documents that become searchable otherwise, e.g. by commitWithin or autoSoftCommit, are seen once
+   * the time to live of the cached sets has passed, or the index version check of the cache notices them.
+   * @param candidateCache the cache, or null to query Solr for each call
+   */
+  public void setCandidateCache(CandidateCache candidateCache) {
+    this.candidateCache = candidateCache;
+  }
+
   @Override
   public int columnSize() {
     return this.columns;
   }
 
   public FastIDSet getCandidates(String keyword, int start, int maxLength)  throws ContentException{
+    if (filterCandidates) {
+      SolrQuery query = nonScoringQuery();
+      addFilterQueries(CandidateFilter.keyword(field, keyword), query);
+      return getCandidates(query, start, maxLength);
+    }
     SolrQuery query = new SolrQuery();
     query.setFacet(false).
        setHighlight(false);
@@ -131,8 +606,18 @@ public class SolrFieldMatrix extends AbstractMatrix {
     return getCandidates(keyword, 0, maxLength);
   }
 
-  public FastIDSet getCandidates(String keyword, double latitude, double longitude, int rangeInKm) throws ContentException {
+  public FastIDSet getCandidates(String keyword, double latitude, double longitude, int rangeInKm)
+     throws ContentException {
     Preconditions.checkNotNull(spatialField, "You should determine the spatial field in your Solr index");
+    if (filterCandidates) {
+      SolrQuery query = nonScoringQuery();
+      addFilterQueries(CandidateFilter.spatial(field, keyword, latitude, longitude, rangeInKm), query);
+      try {
+        return getCandidates(query);
+      } catch (SolrServerException se) {
+        throw new ContentException(se);
+      }
+    }
     SolrQuery query = new SolrQuery();
     query.setQuery(field + ":" + keyword);
     query.setParam("fq", "{!bbox}");
@@ -160,17 +645,206 @@ public class SolrFieldMatrix extends AbstractMatrix {
     return getCandidates(query, 0, maxLength);
   }
 
-  private FastIDSet getCandidates(SolrQuery query) throws SolrServerException {
-    FastIDSet idSet = new FastIDSet();
-    query.setFields(idField);
+  /**
+   * Candidates whose value of this numerical field is within a range, matched with a cached filter query on all
+   * documents; matches are neither scored nor sorted, and returned in index order
+   * @param lower lower bound, inclusive; {@link Double#NEGATIVE_INFINITY} for no lower bound
+   * @param upper upper bound, inclusive; {@link Double#POSITIVE_INFINITY} for no upper bound
+   * @param start offset of the first candidate
+   * @param maxLength max number of candidates to be returned
+   * @return set of candidate entities
+   * @throws ContentException if the query fails
+   */
+  public FastIDSet getRangeCandidates(double lower, double upper, int start, int maxLength) throws ContentException {
+    Preconditions.checkState(type == TYPE.NUMERICAL, "Range candidates are supported for numerical fields only");
+    SolrQuery query = nonScoringQuery();
+    addFilterQueries(CandidateFilter.range(field, lower, upper), query);
+    return getCandidates(query, start, maxLength);
+  }
+
+  public FastIDSet getRangeCandidates(double lower, double upper, int maxLength) throws ContentException {
+    return getRangeCandidates(lower, upper, 0, maxLength);
+  }
+
+  /**
+   * Candidates with the k largest, or smallest, values of this numerical field, which Solr sorts by from the
+   * docValues (or the field cache) of the field; documents without a value are not candidates
+   * @param k number of candidates to be returned
+   * @param descending whether the largest values, rather than the smallest, are returned
+   * @return set of candidate entities
+   * @throws ContentException if the query fails
+   */
+  public FastIDSet getTopCandidates(int k, boolean descending) throws ContentException {
+    Preconditions.checkState(type == TYPE.NUMERICAL, "Top candidates are supported for numerical fields only");
+    SolrQuery query = new SolrQuery("*:*");
+    query.setFacet(false).
+       setHighlight(false).
+       addFilterQuery(field + ":[* TO *]").
+       setSort(field, descending ? SolrQuery.ORDER.desc : SolrQuery.ORDER.asc);
+    return getCandidates(query, 0, k);
+  }
+
+  private FastIDSet getCandidates(final SolrQuery query) throws SolrServerException {
+    query.setFields(docValuesIds ? idField + ":field(" + idField + ")" : idField);
+    CandidateCache candidateCache = this.candidateCache;
+    if (candidateCache == null) {
+      return fetchCandidates(query);
+    }
+    try {
+      return candidateCache.get(CandidateCache.key(field, query), new Callable<FastIDSet>() {
+        @Override
+        public FastIDSet call() throws SolrServerException {
+          return fetchCandidates(query);
+        }
+      });
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), SolrServerException.class);
+      throw Throwables.propagate(e.getCause());
+    } catch (UncheckedExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Results of the search handler are streamed, so that ids are added to the set as documents are decoded, without
+   * materializing the document list; other handlers, which may return more than one document list, are not.
+   */
+  private FastIDSet fetchCandidates(SolrQuery query) throws SolrServerException {
+    if (query.getRequestHandler() == null) {
+      CandidateCollector collector = new CandidateCollector(query.getRows());
+      try {
+        server.queryAndStreamResponse(query, collector);
+      } catch (IOException e) {
+        throw new SolrServerException(e);
+      }
+      return collector.ids;
+    }
     SolrDocumentList docs = server.query(query).getResults();
+    FastIDSet idSet = new FastIDSet(docs.size());
     for (SolrDocument document : docs) {
-      String id = String.valueOf(document.getFieldValue(idField));
-      idSet.add(Long.parseLong(id));
+      idSet.add(toId(document.getFieldValue(idField)));
     }
     return idSet;
   }
 
+  /**
+   * Adds the filter queries of a filter on this field to a query; local parameters are used, so that filters on
+   * several fields can be added to the same query
+   * @param filter a filter on this field
+   * @param query the query
+   */
+  void addFilterQueries(CandidateFilter filter, SolrQuery query) {
+    if (filter.isRange()) {
+      Preconditions.checkState(type == TYPE.NUMERICAL, "Range filters are supported for numerical fields only");
+      query.addFilterQuery(field + ":[" + rangeBound(filter.getLower()) + " TO " + rangeBound(filter.getUpper()) + "]");
+      return;
+    }
+    String keyword = filter.getKeyword();
+    if (type == TYPE.TEXT) {
+      query.addFilterQuery("{!lucene df=" + field + "}" + keyword);
+    } else {
+      query.addFilterQuery(field + ":" + (type == TYPE.BOOLEAN ? "true" : keyword));
+    }
+    if (filter.isSpatial()) {
+      Preconditions.checkNotNull(spatialField, "You should determine the spatial field in your Solr index");
+      query.addFilterQuery("{!bbox sfield=" + spatialField + " pt=" + filter.getLatitude() + "," +
+         filter.getLongitude() + " d=" + filter.getRangeInKm() + "}");
+    }
+  }
+
+  /**
+   * @param bound a bound of a range
+   * @return the bound in query syntax; integral bounds are written without a fraction, so that they parse for integer
+   * fields as well
+   */
+  private static String rangeBound(double bound) {
+    if (Double.isInfinite(bound)) {
+      return "*";
+    }
+    return bound == Math.rint(bound) ? Long.toString((long) bound) : Double.toString(bound);
+  }
+
+  /**
+   * @return a query matching all documents, in index order, to be narrowed by filter queries; Solr neither scores
+   * nor sorts the matches, and caches each filter query in its filterCache
+   */
+  static SolrQuery nonScoringQuery() {
+    SolrQuery query = new SolrQuery("*:*");
+    query.setFacet(false).
+       setHighlight(false).
+       setSort("_docid_", SolrQuery.ORDER.asc);
+    return query;
+  }
+
+  /**
+   * @param query a query on the index of this matrix
+   * @return ids of the documents matching the query, streamed into a set
+   * @throws ContentException if the query fails
+   */
+  CandidateSet getCandidateSet(SolrQuery query) throws ContentException {
+    query.setFields(docValuesIds ? idField + ":field(" + idField + ")" : idField);
+    final CandidateSet ids = new CandidateSet();
+    try {
+      server.queryAndStreamResponse(query, new StreamingResponseCallback() {
+        @Override
+        public void streamSolrDocument(SolrDocument document) {
+          ids.add(toRow(document.getFieldValue(idField)));
+        }
+
+        @Override
+        public void streamDocListInfo(long numFound, long start, Float maxScore) {
+        }
+      });
+    } catch (SolrServerException e) {
+      throw new ContentException(e);
+    } catch (IOException e) {
+      throw new ContentException(e);
+    }
+    return ids;
+  }
+
+  /**
+   * @param id value of the id field, a number, or a string for string typed ids
+   * @return the id
+   */
+  private static long toId(Object id) {
+    return id instanceof Number ? ((Number) id).longValue() : Long.parseLong(id.toString());
+  }
+
+  /**
+   * @param id value of the id field, a number, or a string for string typed ids
+   * @return the row of the id
+   * @throws IllegalArgumentException if the id does not fit in an int
+   */
+  private static int toRow(Object id) {
+    return Ints.checkedCast(toId(id));
+  }
+
+  /**
+   * Collects ids of streamed documents into a set sized by the number of documents returned: the documents found,
+   * bounded by the rows of the query, or by Solr's default rows if the query sets none. A handler that defaults to
+   * more rows only makes the set grow.
+   */
+  private final class CandidateCollector extends StreamingResponseCallback {
+    private final int rows;
+    private FastIDSet ids = new FastIDSet();
+
+    private CandidateCollector(Integer rows) {
+      this.rows = rows == null ? SOLR_DEFAULT_ROWS : rows;
+    }
+
+    @Override
+    public void streamDocListInfo(long numFound, long start, Float maxScore) {
+      long size = Math.min(Math.max(0, numFound - start), rows);
+      ids = new FastIDSet((int) Math.max(1, size));
+    }
+
+    @Override
+    public void streamSolrDocument(SolrDocument document) {
+      ids.add(toId(document.getFieldValue(idField)));
+    }
+  }
+
   public FastIDSet mostSimilars(int docId, int maxLength) throws ContentException {
     SolrQuery query = new SolrQuery();
     query.setRequestHandler("/mlt").
@@ -206,110 +880,673 @@ public class SolrFieldMatrix extends AbstractMatrix {
     return server.query(query).getResults();
   }
 
-  private SolrDocument viewDocument(int docId) throws SolrServerException {
+  private SolrQuery termVectorQuery(String q, int rows) {
+    SolrQuery query = new SolrQuery();
+    //only tf-idf, or tf for hashed columns, is read; the stored field is not needed
+    query.setRows(rows).
+       setFields(idField).
+       setParam(CommonParams.DF, this.field).
+       setParam(hasher == null ? TermVectorParams.TF_IDF : TermVectorParams.TF, true).
+       setParam(TermVectorParams.FIELDS, field).
+       setIncludeScore(false).
+       setRequestHandler("/tvrh").
+       setQuery(q);
+    return query;
+  }
+
+  private SolrQuery rowQuery(String q, int rows) {
+    if (type == TYPE.TEXT && !localTermVectors) {
+      return termVectorQuery(q, rows);
+    }
     SolrQuery query = new SolrQuery();
     query.setFacet(false).
        setHighlight(false).
-       setRows(1).
+       setRows(rows).
        setFields(idField, field).
-       setQuery(idField + ":" + docId);
-    SolrDocumentList results = server.query(query).getResults();
-    if (results.size() == 0) {
-      return null;
+       setQuery(q);
+    return query;
+  }
+
+  /**
+   * @param query a query built by {@link #rowQuery(String, int)}
+   * @param queryResponse response to the query
+   * @return rows of the documents in the response, in the order of the response
+   */
+  private Map<Integer, Vector> vectorize(SolrQuery query, QueryResponse queryResponse) {
+    Map<Integer, Vector> vectors = Maps.newLinkedHashMap();
+    if (type == TYPE.TEXT && !localTermVectors) {
+      final Map<String, Vector> termVectors = Maps.newHashMap();
+      TermVectorParser parser =
+         hasher == null ? new TermVectorParser(columnLabelBindings) : new TermVectorParser(hasher);
+      parser.parse(queryResponse.getResponse(), field,
+         new TermVectorParser.Callback() {
+           @Override
+           public void document(String uniqueKey, int[] columns, double[] weights, int size) {
+             Vector v = new SequentialAccessSparseVector(columnSize(), size);
+             for (int i = 0; i < size; i++) {
+               v.setQuick(columns[i], weights[i]);
+             }
+             termVectors.put(uniqueKey, v);
+           }
+         });
+      for (SolrDocument document : queryResponse.getResults()) {
+        Object id = document.getFieldValue(idField);
+        Vector v = termVectors.get(id.toString());
+        vectors.put(toRow(id), v == null ? vectorize((SolrDocument) null) : v);
+      }
+      return vectors;
+    }
+    for (SolrDocument document : queryResponse.getResults()) {
+      int id = toRow(document.getFieldValue(idField));
+      vectors.put(id, vectorize(document));
+    }
+    return vectors;
+  }
+
+  String idsQuery(int[] ids, int from, int to) {
+    StringBuilder q = new StringBuilder(idField).append(":(");
+    for (int i = from; i < to; i++) {
+      if (i > from) {
+        q.append(" OR ");
+      }
+      q.append(ids[i]);
+    }
+    return q.append(')').toString();
+  }
+
+  private Vector vectorize(SolrDocument document) {
+    Vector v = new SequentialAccessSparseVector(columnSize());
+    if (document == null || document.getFieldValue(field) == null) {
+      return v;
+    }
+    if (type == TYPE.NUMERICAL) {
+      v.setQuick(0, ((Number) document.getFieldValue(field)).doubleValue());
+    } else if (type == TYPE.BOOLEAN) {
+      Object value = document.getFieldValue(field);
+      boolean b = value instanceof Boolean ? (Boolean) value : Boolean.parseBoolean(value.toString());
+      v.setQuick(0, b ? 1 : 0);
+    } else if (type == TYPE.MULTINOMIAL) {
+      for (Object value : document.getFieldValues(field)) {
+        setCategory(v, value.toString());
+      }
+    } else if (type == TYPE.TEXT) {
+      weightTerms(document.getFieldValues(field), v);
+    }
+    return v;
+  }
+
+  /**
+   * Vectorizes a document on the client side, with the rules of {@link #viewRow(int)}. Terms of a text field are
+   * found by the {@link TextAnalyzer}, and weighted by tf/df like Solr's term vectors, with the cached
+   * {@link #getDocumentFrequencies()}. Terms and categories out of the columns of this matrix are ignored.
+   * @param document a document to be written
+   * @return the row of the document, or null if the field is updated partially, by an atomic update
+   */
+  public Vector vectorize(SolrInputDocument document) {
+    Vector v = new SequentialAccessSparseVector(columnSize());
+    Collection<Object> values = document.getFieldValues(field);
+    if (values == null) {
+      return v;
+    }
+    for (Object value : values) {
+      if (value instanceof Map) {
+        return null;
+      }
+    }
+    if (type == TYPE.NUMERICAL) {
+      Object value = values.iterator().next();
+      v.setQuick(0, value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString()));
+    } else if (type == TYPE.BOOLEAN) {
+      Object value = values.iterator().next();
+      boolean b = value instanceof Boolean ? (Boolean) value : Boolean.parseBoolean(value.toString());
+      v.setQuick(0, b ? 1 : 0);
+    } else if (type == TYPE.MULTINOMIAL) {
+      for (Object value : values) {
+        setCategory(v, value.toString());
+      }
+    } else if (type == TYPE.TEXT) {
+      weightTerms(values, v);
+    }
+    return v;
+  }
+
+  /**
+   * Sets the column of a category in a row; a category out of the columns is ignored
+   */
+  private void setCategory(Vector v, String category) {
+    if (hasher != null) {
+      int hash = hasher.hash(category);
+      int column = hasher.column(hash);
+      v.setQuick(column, frequencyWeighted ? v.getQuick(column) + hasher.sign(hash) : hasher.sign(hash));
     } else {
-      return results.get(0);
+      Integer column = columnLabelBindings.get(category);
+      if (column != null) {
+        v.setQuick(column, frequencyWeighted ? v.getQuick(column) + 1 : 1);
+      }
     }
   }
 
-  private List<TermVectorResponse.TermVectorInfo> viewTerms(int docId) throws SolrServerException {
-    SolrQuery query = new SolrQuery();
-    query.setRows(1).
-       setFields(idField, field).
-       setParam(CommonParams.DF, this.field).
-       setParam(TermVectorParams.TF_IDF, true).
-       setParam(TermVectorParams.DF, true).
-       setParam(TermVectorParams.TF, true).
-       setParam(TermVectorParams.FIELDS, field).
-       setIncludeScore(false).
-       setRequestHandler("/tvrh").
-       setQuery(idField + ":" + docId);
-    QueryResponse queryResponse = server.query(query);
-    TermVectorResponse termVectorResponse = new TermVectorResponse(query, queryResponse, Integer.toString(docId));
-    return termVectorResponse.getTermVectorInfoList();
+  /**
+   * Analyzes text values, and sets the tf/df weights of their terms in a row. With hashed columns, there are no
+   * document frequencies, and terms are weighted by their signed tf.
+   */
+  private void weightTerms(Collection<Object> values, Vector v) {
+    if (hasher != null) {
+      Map<Integer, Double> weights = Maps.newHashMap();
+      for (Object value : values) {
+        for (String term : analyzer.analyze(value.toString())) {
+          int hash = hasher.hash(term);
+          int column = hasher.column(hash);
+          Double weight = weights.get(column);
+          weights.put(column, (weight == null ? 0 : weight) + hasher.sign(hash));
+        }
+      }
+      for (Map.Entry<Integer, Double> weight : weights.entrySet()) {
+        v.setQuick(weight.getKey(), weight.getValue());
+      }
+      return;
+    }
+    Map<Integer, Integer> tfs = Maps.newHashMap();
+    for (Object value : values) {
+      for (String term : analyzer.analyze(value.toString())) {
+        Integer column = columnLabelBindings.get(term);
+        if (column != null) {
+          Integer tf = tfs.get(column);
+          tfs.put(column, tf == null ? 1 : tf + 1);
+        }
+      }
+    }
+    int[] dfs = documentFrequencies.get();
+    for (Map.Entry<Integer, Integer> tf : tfs.entrySet()) {
+      v.setQuick(tf.getKey(), tf.getValue() / (double) Math.max(1, dfs[tf.getKey()]));
+    }
   }
 
+  /**
+   * Pins the row of a document written to Solr, so that it is visible before the document is committed, see
+   * {@link #setWriteVisibility(long, TimeUnit)}. If the document can not be vectorized locally, the row is fetched
+   * from Solr instead, but not cached until the write is released. Cached candidate sets are not invalidated
+   * until the write is released, since the document is not a candidate before it is searchable.
+   * @param row the row
+   * @param document the document written
+   */
+  public void updateRow(int row, SolrInputDocument document) {
+    if (snapshot != null) {
+      writtenSinceSnapshot.add(row);
+    }
+    writes.write(row, vectorize(document));
+  }
+
+  /**
+   * @param row the row
+   * @return the row, from the cache if it is cached
+   * @throws IllegalStateException if the row could not be fetched
+   */
   public Vector viewRow(int row) {
-    if(cached.contains(row)){
-      return cache.viewRow(row);
+    Vector v = viewCachedRow(row);
+    if (v != null) {
+      return v;
     }
-    cached.add(row);
-    Vector v = new SequentialAccessSparseVector(columnSize());
-    SolrDocument document = null;
-    try {
-      document = viewDocument(row);
-    } catch (SolrServerException e) {
+    return rowLoader.load(row);
+  }
+
+  /**
+   * @param row the row
+   * @return the row from the cache or the snapshot, or null if it has to be fetched
+   */
+  Vector viewCachedRow(int row) {
+    Optional<Vector> written = writes.get(row);
+    if (written != null && written.isPresent()) {
+      return written.get();
+    }
+    Vector v = rowCache.get(row);
+    if (v != null) {
+      return v;
+    }
+    return viewSnapshot(row);
+  }
+
+  private Vector viewSnapshot(int row) {
+    RowSnapshot snapshot = this.snapshot;
+    if (snapshot == null || writtenSinceSnapshot.contains(row)) {
       return null;
     }
+    Vector v = snapshot.get(row);
+    if (v != null) {
+      rowCache.put(row, v);
+    }
+    return v;
+  }
 
-    if (type == TYPE.NUMERICAL) {
-      if (document != null) {
-        v.setQuick(0, ((Number) document.getFieldValue(field)).doubleValue());
+  /**
+   * Bulk version of {@link #viewRow(int)}: rows that are not cached yet are fetched with one Solr query per
+   * {@link #getBatchSize()} ids, instead of one query per row.
+   * @param rows rows to be viewed
+   * @return row vectors, aligned with rows
+   * @throws IllegalStateException if a batch could not be fetched
+   */
+  public Vector[] viewRows(int[] rows) {
+    Vector[] vectors = new Vector[rows.length];
+    int[] missing = new int[rows.length];
+    int numMissing = 0;
+    HashSet<Integer> seen = Sets.newHashSet();
+    for (int i = 0; i < rows.length; i++) {
+      vectors[i] = viewCachedRow(rows[i]);
+      if (vectors[i] == null && seen.add(rows[i])) {
+        missing[numMissing++] = rows[i];
       }
-//      return v;
-    } else if (type == TYPE.BOOLEAN) {
-      if (document != null) {
-        v.setQuick(0, (Boolean) document.getFieldValue(field) ? 1 : 0);
-//        return v;
+    }
+    if (numMissing == 0) {
+      return vectors;
+    }
+
+    Map<Integer, Vector> fetched = rowLoader.loadAll(Arrays.copyOf(missing, numMissing));
+    for (int i = 0; i < rows.length; i++) {
+      if (vectors[i] == null) {
+        vectors[i] = fetched.get(rows[i]);
       }
-    } else if (type == TYPE.MULTINOMIAL) {
-      if (document != null) {
-        if(document.getFieldValue(field)!=null){
-          String fieldValue = document.getFieldValue(field).toString();
-          if (multivalued) {
-            String[] words = fieldValue.substring(1, fieldValue.lastIndexOf(']')).split(",\\s*");
-            for (String word : words) {
-              if(columnLabelBindings.containsKey(word)){
-                v.setQuick(columnLabelBindings.get(word), 1);
+    }
+    return vectors;
+  }
+
+  /**
+   * @param ids rows to be viewed
+   * @return row vectors, in the iteration order of ids
+   */
+  public Vector[] viewRows(FastIDSet ids) {
+    return viewRows(toRows(ids));
+  }
+
+  static int[] toRows(FastIDSet ids) {
+    int[] rows = new int[ids.size()];
+    int i = 0;
+    for (long id : ids) {
+      rows[i++] = (int) id;
+    }
+    return rows;
+  }
+
+  private Map<Integer, Vector> loadRows(int[] rows) {
+    if (documentFrequencies != null) {
+      //schedules a refresh of the vocabulary if its interval has passed
+      documentFrequencies.get();
+    }
+    long started = writes.started();
+    Map<Integer, Vector> fetched = Maps.newHashMapWithExpectedSize(rows.length);
+    for (int from = 0; from < rows.length; from += batchSize) {
+      int to = Math.min(from + batchSize, rows.length);
+      try {
+        fetchRows(rows, from, to, fetched, started);
+      } catch (SolrServerException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return fetched;
+  }
+
+  private void fetchRows(int[] ids, int from, int to, Map<Integer, Vector> fetched, long started)
+     throws SolrServerException {
+    SolrQuery query = rowQuery(idsQuery(ids, from, to), to - from);
+    fetched.putAll(vectorize(query, server.query(query)));
+    for (int i = from; i < to; i++) {
+      Vector v = fetched.get(ids[i]);
+      if (v == null) {
+        v = vectorize((SolrDocument) null);
+      }
+      fetched.put(ids[i], writes.fetched(ids[i], v, started));
+    }
+  }
+
+  /**
+   * @return whether rows are vectorized from the stored value of the field, rather than from Solr's term vectors;
+   * such rows can be fetched along with the rows of other fields, see {@link SharedRowLoader}
+   */
+  boolean isStoredRows() {
+    return type != TYPE.TEXT || localTermVectors;
+  }
+
+  SolrServer getServer() {
+    return server;
+  }
+
+  /**
+   * @return the write release count, to be read before documents are fetched for
+   * {@link #cacheRows(int[], int, int, SolrDocumentList, long)}
+   */
+  long writesStarted() {
+    return writes.started();
+  }
+
+  /**
+   * Vectorizes and caches rows of documents fetched for another matrix of the same index, like
+   * {@link #viewRows(int[])} does for its own documents; ids without a document are cached as empty rows. Like
+   * fetched rows, rows written before the documents became searchable are neither overwritten nor cached.
+   * @param ids ids of the fetched documents
+   * @param from first id, inclusive
+   * @param to last id, exclusive
+   * @param documents fetched documents, with the stored value of this field
+   * @param started {@link #writesStarted()}, read before the documents were fetched
+   * @return rows of the ids
+   */
+  Map<Integer, Vector> cacheRows(int[] ids, int from, int to, SolrDocumentList documents, long started) {
+    if (documentFrequencies != null) {
+      documentFrequencies.get();
+    }
+    Map<Integer, Vector> fetched = Maps.newHashMapWithExpectedSize(to - from);
+    for (SolrDocument document : documents) {
+      fetched.put(toRow(document.getFieldValue(idField)), vectorize(document));
+    }
+    for (int i = from; i < to; i++) {
+      Vector v = fetched.get(ids[i]);
+      if (v == null) {
+        v = vectorize((SolrDocument) null);
+      }
+      fetched.put(ids[i], writes.fetched(ids[i], v, started));
+    }
+    return fetched;
+  }
+
+  /**
+   * Streams all rows of the matrix, ordered by row index. Rows are fetched page by page with a Solr cursor, one
+   * page of {@link #getBatchSize()} documents at a time, and are not cached.
+   * @return an iterator over the rows of all documents in the index
+   */
+  public Iterator<MatrixSlice> iterateRows() {
+    return exportHandler == null ? new RowPager("*:*") : new RowExporter(Integer.MIN_VALUE, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Like {@link #iterateRows()}, restricted to a range of rows
+   * @param firstRow first row of the range, inclusive
+   * @param lastRow last row of the range, inclusive
+   * @return an iterator over the rows of the documents in the range
+   */
+  public Iterator<MatrixSlice> iterateRows(int firstRow, int lastRow) {
+    String q = idField + ":[" + firstRow + " TO " + lastRow + "]";
+    return exportHandler == null ? new RowPager(q) : new RowExporter(firstRow, lastRow);
+  }
+
+  /**
+   * Parallel version of {@link #iterateRows()}: the row range of the index is split into partitions, each of which
+   * is paged through on the executor. Rows are not ordered; at most partitions * {@link #getBatchSize()} rows are
+   * buffered. An iterator that is not exhausted should be closed, see {@link ParallelRowIterator}.
+   * @param partitions number of partitions
+   * @param executor executor that pages through the partitions
+   * @return an iterator over the rows of all documents in the index
+   * @throws ContentException if the row range could not be determined
+   */
+  public ParallelRowIterator iterateRows(int partitions, ExecutorService executor) throws ContentException {
+    int[] range = rowRange();
+    if (range == null) {
+      //no rows
+      range = new int[]{0, -1};
+    }
+    return new ParallelRowIterator(new ParallelRowIterator.RangeIterable() {
+      @Override
+      public Iterator<MatrixSlice> iterateRows(int firstRow, int lastRow) {
+        return SolrFieldMatrix.this.iterateRows(firstRow, lastRow);
+      }
+    }, range[0], range[1], partitions, executor, partitions * batchSize);
+  }
+
+  /**
+   * @return first and last row of the index, or null if the index is empty
+   */
+  int[] rowRange() throws ContentException {
+    try {
+      SolrQuery query = new SolrQuery("*:*");
+      query.setRows(1).
+         setFields(idField).
+         setSort(idField, SolrQuery.ORDER.asc);
+      SolrDocumentList first = server.query(query).getResults();
+      if (first.isEmpty()) {
+        return null;
+      }
+      query.setSort(idField, SolrQuery.ORDER.desc);
+      SolrDocumentList last = server.query(query).getResults();
+      return new int[]{toRow(first.get(0).getFieldValue(idField)),
+         toRow(last.get(0).getFieldValue(idField))};
+    } catch (SolrServerException e) {
+      throw new ContentException(e);
+    }
+  }
+
+  private final class RowPager extends AbstractIterator<MatrixSlice> {
+    private final SolrQuery query;
+    private String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+    private Iterator<Map.Entry<Integer, Vector>> page = Iterators.emptyIterator();
+    private boolean lastPage = false;
+
+    private RowPager(String q) {
+      query = rowQuery(q, batchSize);
+      query.setSort(idField, SolrQuery.ORDER.asc);
+    }
+
+    @Override
+    protected MatrixSlice computeNext() {
+      while (!page.hasNext()) {
+        if (lastPage) {
+          return endOfData();
+        }
+        query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+        QueryResponse queryResponse;
+        try {
+          queryResponse = server.query(query);
+        } catch (SolrServerException e) {
+          throw new IllegalStateException(e);
+        }
+        String nextCursorMark = queryResponse.getNextCursorMark();
+        lastPage = nextCursorMark == null || nextCursorMark.equals(cursorMark);
+        cursorMark = nextCursorMark;
+        page = vectorize(query, queryResponse).entrySet().iterator();
+      }
+      Map.Entry<Integer, Vector> row = page.next();
+      return new MatrixSlice(row.getValue(), row.getKey());
+    }
+  }
+
+  /**
+   * Reads the rows of an id range from the export handler, one sub-range of {@link #getBatchSize()} ids per request,
+   * so that at most that many rows are kept in memory. Each response is vectorized while it is read, so that only
+   * the rows, not the documents, are kept. A sub-range without documents is followed by a query for the next id,
+   * to skip gaps of the id space.
+   */
+  private final class RowExporter extends AbstractIterator<MatrixSlice> {
+    private final int lastRow;
+    private long from;
+    private Iterator<Map.Entry<Integer, Vector>> rows = Iterators.emptyIterator();
+
+    private RowExporter(int firstRow, int lastRow) {
+      this.from = firstRow;
+      this.lastRow = lastRow;
+    }
+
+    @Override
+    protected MatrixSlice computeNext() {
+      try {
+        while (!rows.hasNext()) {
+          if (from > lastRow) {
+            return endOfData();
+          }
+          final long to = Math.min(from + batchSize - 1, lastRow);
+          final long first = from;
+          SolrQuery query = new SolrQuery(idField + ":[" + first + " TO " + to + "]");
+          query.setRequestHandler(exportHandler).
+             setFields(idField, field).
+             setSort(idField, SolrQuery.ORDER.asc);
+          final Map<Integer, Vector> exported = Maps.newLinkedHashMap();
+          QueryRequest request = new QueryRequest(query);
+          request.setResponseParser(new ExportResponseParser(new ExportResponseParser.Callback() {
+            @Override
+            public void document(SolrDocument document) {
+              int id = toRow(document.getFieldValue(idField));
+              if (id >= first && id <= to) {
+                exported.put(id, vectorize(document));
               }
             }
-          } else {
-            v.setQuick(columnLabelBindings.get(fieldValue), 1);
+          }));
+          request.process(server);
+          rows = exported.entrySet().iterator();
+          from = to + 1;
+          if (exported.isEmpty() && from <= lastRow) {
+            from = nextRow(from);
           }
         }
-//        return v;
-      }
-    } else if (type == TYPE.TEXT) {
-      List<TermVectorResponse.TermVectorInfo> terms;
-      try {
-        terms = viewTerms(row);
       } catch (SolrServerException e) {
-        return null;
+        throw new IllegalStateException(e);
       }
-      for (TermVectorResponse.TermVectorInfo term : terms) {
-        String word = term.getWord();
-        if(columnLabelBindings.containsKey(word)){
-          v.setQuick(columnLabelBindings.get(word), term.getTfIdf());
+      Map.Entry<Integer, Vector> row = rows.next();
+      return new MatrixSlice(row.getValue(), row.getKey());
+    }
+
+    /**
+     * @return the first row from the given row on, or a row past the last row if there is none
+     */
+    private long nextRow(long from) throws SolrServerException {
+      SolrQuery query = new SolrQuery(idField + ":[" + from + " TO " + lastRow + "]");
+      query.setRows(1).
+         setFields(idField).
+         setSort(idField, SolrQuery.ORDER.asc);
+      SolrDocumentList next = server.query(query).getResults();
+      return next.isEmpty() ? (long) lastRow + 1 : toRow(next.get(0).getFieldValue(idField));
+    }
+  }
+
+  /**
+   * Loads the values of this numerical field of all documents at once, without vectorizing rows: from the docValues
+   * of the field with a single request, if an export handler is set, or by paging through the documents that have a
+   * value otherwise.
+   * @return values of the field by id, dense or sparse depending on the ids, see {@link NumericColumn}
+   * @throws ContentException if a page could not be fetched, or an id is negative or does not fit in an int
+   */
+  public NumericColumn loadNumericColumn() throws ContentException {
+    Preconditions.checkState(type == TYPE.NUMERICAL, "Numeric columns are supported for numerical fields only");
+    final NumericColumn column = new NumericColumn();
+    String q = field + ":[* TO *]";
+    try {
+      if (exportHandler != null) {
+        SolrQuery query = new SolrQuery(q);
+        query.setRequestHandler(exportHandler).
+           setFields(idField, field).
+           setSort(idField, SolrQuery.ORDER.asc);
+        QueryRequest request = new QueryRequest(query);
+        request.setResponseParser(new ExportResponseParser(new ExportResponseParser.Callback() {
+          @Override
+          public void document(SolrDocument document) {
+            addValue(column, document);
+          }
+        }));
+        request.process(server);
+      } else {
+        SolrQuery query = new SolrQuery(q);
+        query.setFacet(false).
+           setHighlight(false).
+           setRows(Math.max(batchSize, COLUMN_PAGE_SIZE)).
+           setSort(idField, SolrQuery.ORDER.asc);
+        if (docValuesIds) {
+          query.setFields(idField + ":field(" + idField + ")", field + ":field(" + field + ")");
+        } else {
+          query.setFields(idField, field);
+        }
+        String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+        while (true) {
+          query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+          QueryResponse queryResponse = server.query(query);
+          for (SolrDocument document : queryResponse.getResults()) {
+            addValue(column, document);
+          }
+          String nextCursorMark = queryResponse.getNextCursorMark();
+          if (nextCursorMark == null || nextCursorMark.equals(cursorMark)) {
+            break;
+          }
+          cursorMark = nextCursorMark;
         }
       }
-//      return v;
-    } else {
-      return null;
+    } catch (SolrServerException e) {
+      throw new ContentException(e);
+    } catch (IllegalArgumentException e) {
+      throw new ContentException(e.getMessage(), e);
     }
-    cache.assignRow(row, v);
-    return v;
+    return column;
   }
 
+  private void addValue(NumericColumn column, SolrDocument document) {
+    Object value = document.getFieldValue(field);
+    if (value == null) {
+      return;
+    }
+    long id = toId(document.getFieldValue(idField));
+    Preconditions.checkArgument(id >= 0 && id < Integer.MAX_VALUE, "id %s is out of the range of a column", id);
+    column.set((int) id, ((Number) value).doubleValue());
+  }
+
+  /**
+   * Materializes a column by paging through the matching documents with a Solr cursor, one page of
+   * {@link #getBatchSize()} documents at a time, reading their values directly from the responses, rather than
+   * viewing each matching row.
+   */
   @Override
   public Vector viewColumn(int column) {
-    String keyword = columnLabelBindings.keySet().toArray(new String[columnLabelBindings.size()])[column];
+    if (hasher != null) {
+      throw new UnsupportedOperationException("hashed columns of " + field + " have no labels to query");
+    }
+    String label = columnLabels[column];
+    if (label == null) {
+      //a reserved column of a growable vocabulary
+      return new RandomAccessSparseVector(rowSize());
+    }
+    Vector v = new RandomAccessSparseVector(rowSize());
+    SolrQuery query;
+    if (type == TYPE.TEXT) {
+      query = rowQuery(field + ":" + ClientUtils.escapeQueryChars(label), batchSize);
+    } else {
+      query = new SolrQuery();
+      query.setFacet(false).
+         setHighlight(false).
+         setRows(batchSize);
+      if (type == TYPE.NUMERICAL) {
+        query.setQuery(field + ":[* TO *]").
+           setFields(idField, field);
+      } else if (type == TYPE.BOOLEAN) {
+        query.setQuery(field + ":true").
+           setFields(idField);
+      } else if (frequencyWeighted) {
+        query.setQuery(field + ":" + ClientUtils.escapeQueryChars(label)).
+           setFields(idField, field);
+      } else {
+        query.setQuery(field + ":" + ClientUtils.escapeQueryChars(label)).
+           setFields(idField);
+      }
+    }
+    query.setSort(idField, SolrQuery.ORDER.asc);
+    String cursorMark = CursorMarkParams.CURSOR_MARK_START;
     try {
-      FastIDSet idSet = getCandidates(keyword, rowSize());
-      Vector v = new SequentialAccessSparseVector(rowSize());
-      for (long id : idSet) {
-        v.setQuick((int) id, get((int) id, column));
+      while (true) {
+        query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+        QueryResponse queryResponse = server.query(query);
+        if (type == TYPE.TEXT) {
+          for (Map.Entry<Integer, Vector> row : vectorize(query, queryResponse).entrySet()) {
+            v.setQuick(row.getKey(), row.getValue().getQuick(column));
+          }
+        } else {
+          for (SolrDocument document : queryResponse.getResults()) {
+            int id = toRow(document.getFieldValue(idField));
+            if (type == TYPE.NUMERICAL) {
+              v.setQuick(id, ((Number) document.getFieldValue(field)).doubleValue());
+            } else if (type == TYPE.MULTINOMIAL && frequencyWeighted) {
+              v.setQuick(id, vectorize(document).getQuick(column));
+            } else {
+              v.setQuick(id, 1);
+            }
+          }
+        }
+        String nextCursorMark = queryResponse.getNextCursorMark();
+        if (nextCursorMark == null || nextCursorMark.equals(cursorMark)) {
+          return v;
+        }
+        cursorMark = nextCursorMark;
       }
-      return v;
-    } catch (ContentException ce) {
+    } catch (SolrServerException e) {
       return null;
     }
   }
@@ -328,6 +1565,7 @@ public class SolrFieldMatrix extends AbstractMatrix {
     document.setField(idField, row);
     try {
       server.add(document);
+      updateRow(row, document);
     } catch (SolrServerException e) {
       throw new ContentException(e);
     } catch (IOException e) {
@@ -0,0 +1,376 @@
+package com.personaissance.persona.contentdb.matrix;
+
+import com.personaissance.persona.contentdb.exception.ContentException;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@author} gcapan
+ * Sends documents to Solr asynchronously, in batches. Documents are buffered in a bounded queue, and callers of
+ * {@link #add(SolrInputDocument)} block while the queue is full. Sender threads drain the queue into batches that are
+ * limited both by number of documents and by estimated size in bytes.
+ * <p/>
+ * Documents become searchable either by the commitWithin of batches, or by the commit issued on {@link #flush()},
+ * see {@link CommitPolicy}. A batch that could not be sent is reported to the listeners, and the first such failure,
+ * or the first exception thrown by a listener, is thrown from the next {@link #add(SolrInputDocument)},
+ * {@link #flush()} or {@link #close()}; sender threads keep draining the queue after failures.
+ */
+public class SolrIngester implements Closeable {
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+  public static final int DEFAULT_BATCH_DOCUMENTS = 500;
+  public static final long DEFAULT_BATCH_BYTES = 4L << 20;
+
+  /**
+   * The commit issued when the ingester is flushed
+   */
+  public enum CommitPolicy {
+    /**
+     * No commit; documents become visible by commitWithin or by the autoCommit settings of the core
+     */
+    NONE,
+    SOFT,
+    HARD
+  }
+
+  /**
+   * Notified from sender threads after each batch.
+   */
+  public interface Listener {
+    /**
+     * @param ids ids of the documents of a batch that has been sent
+     */
+    void onSuccess(int[] ids);
+
+    /**
+     * @param ids ids of the documents of a batch that could not be sent
+     * @param e the cause
+     */
+    void onFailure(int[] ids, ContentException e);
+
+    /**
+     * Called after {@link #flush()} has committed, once all documents sent so far are searchable
+     */
+    void onCommit();
+  }
+
+  private final SolrServer server;
+  private final String idField;
+  private final int maxBatchDocuments;
+  private final long maxBatchBytes;
+  private final BlockingQueue<SolrInputDocument> queue;
+  private final ExecutorService senders;
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+  private final Object lock = new Object();
+  private long pending = 0;
+  private ContentException failure = null;
+  private volatile boolean closed = false;
+
+  private volatile int commitWithinMs = -1;
+  private volatile CommitPolicy commitPolicy = CommitPolicy.SOFT;
+
+  public SolrIngester(SolrServer server, String idField, int numSenders) {
+    this(server, idField, DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_DOCUMENTS, DEFAULT_BATCH_BYTES, numSenders);
+  }
+
+  /**
+   * @param server the server documents are sent to
+   * @param idField the unique key field of the documents
+   * @param queueCapacity number of documents buffered before callers are blocked
+   * @param maxBatchDocuments maximum number of documents in a batch
+   * @param maxBatchBytes maximum estimated size of a batch; a single larger document is sent alone
+   * @param numSenders number of threads sending batches in parallel
+   */
+  public SolrIngester(SolrServer server, String idField, int queueCapacity, int maxBatchDocuments,
+                      long maxBatchBytes, int numSenders) {
+    Preconditions.checkArgument(queueCapacity > 0, "queueCapacity must be positive");
+    Preconditions.checkArgument(maxBatchDocuments > 0, "maxBatchDocuments must be positive");
+    Preconditions.checkArgument(maxBatchBytes > 0, "maxBatchBytes must be positive");
+    Preconditions.checkArgument(numSenders > 0, "numSenders must be positive");
+    this.server = server;
+    this.idField = idField;
+    this.maxBatchDocuments = maxBatchDocuments;
+    this.maxBatchBytes = maxBatchBytes;
+    this.queue = new ArrayBlockingQueue<SolrInputDocument>(queueCapacity);
+    this.senders = Executors.newFixedThreadPool(numSenders,
+       new ThreadFactoryBuilder().setDaemon(true).setNameFormat("solr-ingester-%d").build());
+    for (int i = 0; i < numSenders; i++) {
+      senders.execute(new Sender());
+    }
+  }
+
+  public int getCommitWithin() {
+    return commitWithinMs;
+  }
+
+  /**
+   * @param commitWithinMs commitWithin of each batch, in milliseconds; a non-positive value disables it
+   */
+  public void setCommitWithin(int commitWithinMs) {
+    this.commitWithinMs = commitWithinMs;
+  }
+
+  public CommitPolicy getCommitPolicy() {
+    return commitPolicy;
+  }
+
+  public void setCommitPolicy(CommitPolicy commitPolicy) {
+    this.commitPolicy = Preconditions.checkNotNull(commitPolicy);
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(Preconditions.checkNotNull(listener));
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Queues a document, blocking while the queue is full
+   * @param document the document, with its id field set
+   * @throws ContentException if an earlier batch could not be sent, or the ingester is closed
+   * @throws NumberFormatException if the id of the document is not an integer
+   */
+  public void add(SolrInputDocument document) throws ContentException {
+    Object id = document.getFieldValue(idField);
+    Preconditions.checkArgument(id != null, "document has no %s", idField);
+    Integer.parseInt(id.toString());
+    throwFailure();
+    if (closed) {
+      throw new ContentException(new IllegalStateException("ingester is closed"));
+    }
+    synchronized (lock) {
+      pending++;
+    }
+    try {
+      queue.put(document);
+    } catch (InterruptedException e) {
+      sent(1);
+      Thread.currentThread().interrupt();
+      throw new ContentException(e);
+    }
+  }
+
+  /**
+   * Waits until all queued documents are sent, commits according to the {@link CommitPolicy}, and notifies the
+   * listeners of the commit
+   * @throws ContentException if a batch could not be sent, the commit failed, or a listener failed on the commit
+   */
+  public void flush() throws ContentException {
+    synchronized (lock) {
+      while (pending > 0) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new ContentException(e);
+        }
+      }
+    }
+    throwFailure();
+    CommitPolicy commitPolicy = this.commitPolicy;
+    if (commitPolicy == CommitPolicy.NONE) {
+      return;
+    }
+    try {
+      server.commit(true, true, commitPolicy == CommitPolicy.SOFT);
+    } catch (SolrServerException e) {
+      throw new ContentException(e);
+    } catch (IOException e) {
+      throw new ContentException(e);
+    }
+    ContentException listenerFailure = null;
+    for (Listener listener : listeners) {
+      try {
+        listener.onCommit();
+      } catch (RuntimeException e) {
+        if (listenerFailure == null) {
+          listenerFailure = new ContentException("a listener failed on commit", e);
+        }
+      }
+    }
+    if (listenerFailure != null) {
+      throw listenerFailure;
+    }
+  }
+
+  /**
+   * Flushes, and stops the sender threads
+   * @throws IOException wrapping the {@link ContentException} of {@link #flush()}
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      flush();
+    } catch (ContentException e) {
+      throw new IOException(e);
+    } finally {
+      senders.shutdownNow();
+    }
+  }
+
+  private void throwFailure() throws ContentException {
+    ContentException failure;
+    synchronized (lock) {
+      failure = this.failure;
+      this.failure = null;
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void sent(int documents) {
+    synchronized (lock) {
+      pending -= documents;
+      if (pending == 0) {
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private void failed(ContentException e) {
+    synchronized (lock) {
+      if (failure == null) {
+        failure = e;
+      }
+    }
+  }
+
+  private final class Sender implements Runnable {
+    private final List<SolrInputDocument> batch = Lists.newArrayList();
+
+    @Override
+    public void run() {
+      while (!Thread.currentThread().isInterrupted()) {
+        try {
+          batch.add(queue.take());
+        } catch (InterruptedException e) {
+          return;
+        }
+        try {
+          long bytes = estimateBytes(batch.get(0));
+          SolrInputDocument next;
+          while (batch.size() < maxBatchDocuments && bytes < maxBatchBytes && (next = queue.peek()) != null) {
+            long size = estimateBytes(next);
+            if (bytes + size > maxBatchBytes) {
+              break;
+            }
+            //another sender may have taken it
+            next = queue.poll();
+            if (next == null) {
+              break;
+            }
+            batch.add(next);
+            bytes += size;
+          }
+          send(batch);
+        } catch (RuntimeException e) {
+          fail(ids(batch), new ContentException("failed to send a batch of " + batch.size() + " documents", e));
+        } finally {
+          sent(batch.size());
+          batch.clear();
+        }
+      }
+    }
+
+    private void send(List<SolrInputDocument> batch) {
+      int[] ids = ids(batch);
+      UpdateRequest request = new UpdateRequest();
+      request.add(batch);
+      int commitWithinMs = SolrIngester.this.commitWithinMs;
+      if (commitWithinMs > 0) {
+        request.setCommitWithin(commitWithinMs);
+      }
+      Exception cause;
+      try {
+        request.process(server);
+        for (Listener listener : listeners) {
+          try {
+            listener.onSuccess(ids);
+          } catch (RuntimeException e) {
+            failed(new ContentException("a listener failed on a batch of " + ids.length + " documents", e));
+          }
+        }
+        return;
+      } catch (SolrServerException e) {
+        cause = e;
+      } catch (IOException e) {
+        cause = e;
+      } catch (RuntimeException e) {
+        cause = e;
+      }
+      fail(ids, new ContentException("failed to send a batch of " + ids.length + " documents", cause));
+    }
+
+    /**
+     * Records the failure of a batch, and notifies the listeners; a listener that throws does not keep the others
+     * from being notified
+     */
+    private void fail(int[] ids, ContentException e) {
+      failed(e);
+      for (Listener listener : listeners) {
+        try {
+          listener.onFailure(ids, e);
+        } catch (RuntimeException ignored) {
+          //the failure of the batch is already recorded
+        }
+      }
+    }
+
+    /**
+     * @return ids of the documents of a batch; ids that are not integers, which {@link #add(SolrInputDocument)}
+     * rejects unless a queued document is modified, are skipped
+     */
+    private int[] ids(List<SolrInputDocument> batch) {
+      int[] ids = new int[batch.size()];
+      int size = 0;
+      for (SolrInputDocument document : batch) {
+        Object id = document.getFieldValue(idField);
+        try {
+          ids[size] = Integer.parseInt(String.valueOf(id));
+          size++;
+        } catch (NumberFormatException e) {
+          //not reported
+        }
+      }
+      return size == ids.length ? ids : Arrays.copyOf(ids, size);
+    }
+  }
+
+  /**
+   * @return rough size of the document in a request, in bytes
+   */
+  static long estimateBytes(SolrInputDocument document) {
+    long bytes = 0;
+    for (SolrInputField field : document) {
+      for (Object value : field) {
+        bytes += field.getName().length() + String.valueOf(value).length() + 16;
+      }
+    }
+    return bytes;
+  }
+}
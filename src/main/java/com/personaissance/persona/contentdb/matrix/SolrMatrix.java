@@ -1,13 +1,36 @@
 package com.personaissance.persona.contentdb.matrix;
 
+import com.personaissance.persona.contentdb.CandidateFilter;
+import com.personaissance.persona.contentdb.CandidateSet;
 import com.personaissance.persona.contentdb.Content;
+import com.personaissance.persona.contentdb.NumericColumn;
 import com.personaissance.persona.contentdb.exception.ContentException;
+import com.personaissance.persona.contentdb.matrix.cache.CandidateCache;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.math.MatrixSlice;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.common.SolrInputDocument;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * {@author} gcapan
@@ -16,17 +39,339 @@ import java.util.Map;
 public class SolrMatrix extends SuperMatrix implements Content {
   private Map<String, Integer> fieldMappings = Maps.newHashMap();
   private SolrFieldMatrix[] matrices;
+  private SolrIngester ingester = null;
+  /**
+   * Indices of field matrices whose rows are fetched together; a matrix that shares no server is a group by itself
+   */
+  private final int[][] groups;
+  /**
+   * Loaders of the groups, or null for groups of one matrix
+   */
+  private final SharedRowLoader[] loaders;
+
   public SolrMatrix(SolrFieldMatrix[] matrices) {
     super(matrices);
     this.matrices = matrices;
+    Map<List<Object>, List<Integer>> sharing = Maps.newLinkedHashMap();
     for(int i = 0; i<matrices.length; i++){
       SolrFieldMatrix matrix = matrices[i];
       fieldMappings.put(matrix.getFieldName(), i);
+      //servers are compared by identity, a server instance being bound to a single core
+      List<Object> key = matrix.isStoredRows() ?
+         Arrays.<Object>asList(matrix.getServer(), matrix.getIdField()) : Arrays.<Object>asList(matrix);
+      List<Integer> group = sharing.get(key);
+      if (group == null) {
+        group = Lists.newArrayList();
+        sharing.put(key, group);
+      }
+      group.add(i);
+    }
+    groups = new int[sharing.size()][];
+    loaders = new SharedRowLoader[groups.length];
+    int g = 0;
+    for (List<Integer> group : sharing.values()) {
+      groups[g] = Ints.toArray(group);
+      if (group.size() > 1) {
+        SolrFieldMatrix[] shared = new SolrFieldMatrix[group.size()];
+        for (int i = 0; i < shared.length; i++) {
+          shared[i] = matrices[group.get(i)];
+        }
+        loaders[g] = new SharedRowLoader(shared);
+      }
+      g++;
+    }
+  }
+
+  /**
+   * Field matrices reading stored fields of the same server are fetched with a single query per batch of rows, see
+   * {@link SharedRowLoader}; the groups of matrices are fanned out like single matrices in
+   * {@link SuperMatrix#viewRow(int)}.
+   */
+  @Override
+  public Vector viewRow(int row) {
+    if (groups.length == matrices.length) {
+      return super.viewRow(row);
+    }
+    return viewRows(new int[]{row})[0];
+  }
+
+  @Override
+  public Vector[] viewRows(final int[] rows) {
+    if (groups.length == matrices.length) {
+      return super.viewRows(rows);
+    }
+    Object[] results = fanOut(groups.length, new FanOutTask<Vector[][]>() {
+      @Override
+      public Vector[][] apply(int group) {
+        if (loaders[group] != null) {
+          return loaders[group].viewRows(rows);
+        }
+        int matrix = groups[group][0];
+        return new Vector[][]{rows.length == 1 ?
+           new Vector[]{matrices[matrix].viewRow(rows[0])} : matrices[matrix].viewRows(rows)};
+      }
+    });
+    Vector[][] subVectors = new Vector[matrices.length][];
+    for (int g = 0; g < groups.length; g++) {
+      Vector[][] groupVectors = (Vector[][]) results[g];
+      for (int i = 0; i < groups[g].length; i++) {
+        subVectors[groups[g][i]] = groupVectors[i];
+      }
+    }
+    return joinRows(subVectors, rows.length);
+  }
+
+  @Override
+  protected Vector[] viewRows(int matrix, int[] rows) {
+    return matrices[matrix].viewRows(rows);
+  }
+
+  /**
+   * @param ids rows to be viewed
+   * @return row vectors, in the iteration order of ids
+   */
+  public Vector[] viewRows(FastIDSet ids) {
+    return viewRows(SolrFieldMatrix.toRows(ids));
+  }
+
+  /**
+   * Streams all rows, ordered by row index, by merging the row streams of the field matrices; see
+   * {@link SolrFieldMatrix#iterateRows()}.
+   * @return an iterator over the rows of all documents in the index
+   */
+  public Iterator<MatrixSlice> iterateRows() {
+    return iterateRows(Integer.MIN_VALUE, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param firstRow first row of the range, inclusive
+   * @param lastRow last row of the range, inclusive
+   * @return an iterator over the rows in the range, ordered by row index
+   */
+  public Iterator<MatrixSlice> iterateRows(int firstRow, int lastRow) {
+    List<PeekingIterator<MatrixSlice>> iterators = Lists.newArrayListWithCapacity(matrices.length);
+    for (SolrFieldMatrix matrix : matrices) {
+      iterators.add(Iterators.peekingIterator(matrix.iterateRows(firstRow, lastRow)));
+    }
+    return new MergingRowIterator(iterators);
+  }
+
+  /**
+   * Parallel version of {@link #iterateRows()}; rows are not ordered. An iterator that is not exhausted should be
+   * closed, see {@link ParallelRowIterator}.
+   * @param partitions number of partitions the row range is split into
+   * @param executor executor that pages through the partitions
+   * @return an iterator over the rows of all documents in the index
+   * @throws ContentException if the row range could not be determined
+   */
+  public ParallelRowIterator iterateRows(int partitions, ExecutorService executor) throws ContentException {
+    int firstRow = Integer.MAX_VALUE;
+    int lastRow = Integer.MIN_VALUE;
+    for (SolrFieldMatrix matrix : matrices) {
+      int[] range = matrix.rowRange();
+      if (range != null) {
+        firstRow = Math.min(firstRow, range[0]);
+        lastRow = Math.max(lastRow, range[1]);
+      }
+    }
+    //an empty range if no matrix has rows
+    return new ParallelRowIterator(new ParallelRowIterator.RangeIterable() {
+      @Override
+      public Iterator<MatrixSlice> iterateRows(int firstRow, int lastRow) {
+        return SolrMatrix.this.iterateRows(firstRow, lastRow);
+      }
+    }, firstRow, lastRow, partitions, executor, partitions * matrices[0].getBatchSize());
+  }
+
+  /**
+   * Joins the ordered row streams of the field matrices on row index; a row missing in a field is viewed as empty.
+   */
+  private final class MergingRowIterator extends AbstractIterator<MatrixSlice> {
+    private final List<PeekingIterator<MatrixSlice>> iterators;
+
+    private MergingRowIterator(List<PeekingIterator<MatrixSlice>> iterators) {
+      this.iterators = iterators;
+    }
+
+    @Override
+    protected MatrixSlice computeNext() {
+      int row = Integer.MAX_VALUE;
+      boolean found = false;
+      for (PeekingIterator<MatrixSlice> iterator : iterators) {
+        if (iterator.hasNext()) {
+          row = Math.min(row, iterator.peek().index());
+          found = true;
+        }
+      }
+      if (!found) {
+        return endOfData();
+      }
+      Vector[] vectors = new Vector[matrices.length];
+      for (int i = 0; i < matrices.length; i++) {
+        PeekingIterator<MatrixSlice> iterator = iterators.get(i);
+        if (iterator.hasNext() && iterator.peek().index() == row) {
+          vectors[i] = iterator.next().vector();
+        } else {
+          vectors[i] = new SequentialAccessSparseVector(matrices[i].columnSize());
+        }
+      }
+      return new MatrixSlice(new VectorSuperView(columnSize(), vectors), row);
+    }
+  }
+
+  /**
+   * Writes a snapshot of each field matrix into a directory, as {@code <field>.snapshot}
+   * @param directory the directory snapshots are written to
+   * @param doublePrecision whether values are written as doubles, rather than floats
+   * @throws IOException
+   */
+  public void writeSnapshot(File directory, boolean doublePrecision) throws IOException {
+    for (SolrFieldMatrix matrix : matrices) {
+      matrix.writeSnapshot(snapshotFile(directory, matrix), doublePrecision);
+    }
+  }
+
+  /**
+   * Loads the snapshots written by {@link #writeSnapshot(File, boolean)}; fields without a snapshot file are skipped
+   * @param directory the directory snapshots are read from
+   * @throws IOException
+   */
+  public void loadSnapshot(File directory) throws IOException {
+    for (SolrFieldMatrix matrix : matrices) {
+      File file = snapshotFile(directory, matrix);
+      if (file.exists()) {
+        matrix.loadSnapshot(file);
+      }
+    }
+  }
+
+  private static File snapshotFile(File directory, SolrFieldMatrix matrix) {
+    return new File(directory, matrix.getFieldName() + ".snapshot");
+  }
+
+  /**
+   * Shares a candidate cache among all field matrices, see {@link SolrFieldMatrix#setCandidateCache(CandidateCache)}
+   * @param candidateCache the cache, or null to query Solr for each call
+   */
+  public void setCandidateCache(CandidateCache candidateCache) {
+    for (SolrFieldMatrix matrix : matrices) {
+      matrix.setCandidateCache(candidateCache);
     }
   }
 
+  public SolrIngester getIngester() {
+    return ingester;
+  }
+
+  /**
+   * Routes {@link #setContent(int, SolrInputDocument)} through an ingester, which sends documents asynchronously in
+   * batches. Rows are written to all field matrices when documents are queued, discarded if their batch could not
+   * be sent, and released when the ingester commits.
+   * @param ingester the ingester, or null to send each document synchronously
+   */
+  public void setIngester(SolrIngester ingester) {
+    if (this.ingester != null) {
+      this.ingester.removeListener(invalidator);
+    }
+    this.ingester = ingester;
+    if (ingester != null) {
+      ingester.addListener(invalidator);
+    }
+  }
+
+  private final SolrIngester.Listener invalidator = new SolrIngester.Listener() {
+    @Override
+    public void onSuccess(int[] ids) {
+      //the batch may already be searchable, by commitWithin
+      for (SolrFieldMatrix matrix : matrices) {
+        matrix.invalidateCandidates();
+      }
+    }
+
+    @Override
+    public void onFailure(int[] ids, ContentException e) {
+      for (int id : ids) {
+        discardWrite(id);
+      }
+    }
+
+    @Override
+    public void onCommit() {
+      releaseWrites();
+    }
+  };
+
+  private void discardWrite(int id) {
+    for (SolrFieldMatrix matrix : matrices) {
+      matrix.discardWrite(id);
+    }
+  }
+
+  private void releaseWrites() {
+    for (SolrFieldMatrix matrix : matrices) {
+      matrix.releaseWrites();
+    }
+  }
+
+  /**
+   * Makes the documents written so far searchable: flushes the ingester, if any, commits, and releases the written
+   * rows of all field matrices, see {@link SolrFieldMatrix#setWriteVisibility(long, TimeUnit)}
+   * @throws ContentException if a document could not be written, or the commit failed
+   */
+  public void commit() throws ContentException {
+    SolrIngester ingester = this.ingester;
+    if (ingester != null) {
+      ingester.flush();
+      if (ingester.getCommitPolicy() != SolrIngester.CommitPolicy.NONE) {
+        //released by the listener
+        return;
+      }
+    }
+    Set<SolrServer> servers = Sets.newIdentityHashSet();
+    //rows written while committing are not released
+    long[] sequences = new long[matrices.length];
+    for (int i = 0; i < matrices.length; i++) {
+      servers.add(matrices[i].getServer());
+      sequences[i] = matrices[i].writeSequence();
+    }
+    try {
+      for (SolrServer server : servers) {
+        server.commit(true, true, true);
+      }
+    } catch (SolrServerException e) {
+      throw new ContentException(e);
+    } catch (IOException e) {
+      throw new ContentException(e);
+    }
+    for (int i = 0; i < matrices.length; i++) {
+      matrices[i].releaseWrites(sequences[i]);
+    }
+  }
+
+  /**
+   * Writes the document, and writes its rows through to all field matrices, see
+   * {@link SolrFieldMatrix#updateRow(int, SolrInputDocument)}
+   */
   private void assignRow(int id, SolrInputDocument document) throws ContentException{
-    matrices[0].assignRow(id, document);
+    SolrIngester ingester = this.ingester;
+    if (ingester == null) {
+      matrices[0].assignRow(id, document);
+      for (int i = 1; i < matrices.length; i++) {
+        matrices[i].updateRow(id, document);
+      }
+      return;
+    }
+    document.setField(matrices[0].getIdField(), id);
+    //rows are written before queueing, so that the failure listener of the batch always finds them to discard
+    for (SolrFieldMatrix matrix : matrices) {
+      matrix.updateRow(id, document);
+    }
+    try {
+      ingester.add(document);
+    } catch (ContentException e) {
+      discardWrite(id);
+      throw e;
+    }
   }
 
   @Override
@@ -60,6 +405,36 @@ public class SolrMatrix extends SuperMatrix implements Content {
     return matrices[fieldMappings.get(identifier)].mostSimilars(id, maxLength);
   }
 
+  @Override
+  public FastIDSet getRangeCandidates(String identifier, double lower, double upper, int maxLength)
+     throws ContentException {
+    return matrices[fieldMappings.get(identifier)].getRangeCandidates(lower, upper, maxLength);
+  }
+
+  @Override
+  public FastIDSet getTopCandidates(String identifier, int k, boolean descending) throws ContentException {
+    return matrices[fieldMappings.get(identifier)].getTopCandidates(k, descending);
+  }
+
+  @Override
+  public NumericColumn getNumericColumn(String identifier) throws ContentException {
+    return matrices[fieldMappings.get(identifier)].loadNumericColumn();
+  }
+
+  @Override
+  public CandidateSet getCandidates(CandidateFilter[] filters, int maxLength) throws ContentException {
+    Preconditions.checkArgument(filters.length > 0, "At least one filter is required");
+    SolrFieldMatrix first = matrices[fieldMappings.get(filters[0].getIdentifier())];
+    SolrQuery query = SolrFieldMatrix.nonScoringQuery();
+    query.setRows(maxLength);
+    for (CandidateFilter filter : filters) {
+      SolrFieldMatrix matrix = matrices[fieldMappings.get(filter.getIdentifier())];
+      Preconditions.checkArgument(matrix.getServer() == first.getServer(), "Filtered fields are in different indices");
+      matrix.addFilterQueries(filter, query);
+    }
+    return first.getCandidateSet(query);
+  }
+
   @Override
   public void setContent(int id, SolrInputDocument document) throws ContentException {
     assignRow(id, document);
@@ -1,12 +1,21 @@
 package com.personaissance.persona.contentdb.matrix;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.apache.mahout.math.AbstractMatrix;
 import org.apache.mahout.math.CardinalityException;
 import org.apache.mahout.math.Matrix;
 import org.apache.mahout.math.Vector;
 
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Adjoins multiple matrices, rows can be reached as if it is a single matrix
@@ -14,7 +23,18 @@ import java.util.Map;
 public class SuperMatrix extends AbstractMatrix {
 
   private Matrix[] matrices;
-  private int[] columnSizes;
+  /**
+   * offsets[i] is the first column of matrices[i]; offsets[matrices.length] is the total number of columns
+   */
+  private int[] offsets;
+  /**
+   * column to sub-matrix table, for matrices with at most {@link #MAX_LOOKUP_COLUMNS} columns; null otherwise
+   */
+  private short[] columnMatrices;
+
+  private static final int MAX_LOOKUP_COLUMNS = 1 << 20;
+
+  private ExecutorService executor = null;
 
   public SuperMatrix(Matrix[] matrices) {
     super(matrices[0].rowSize(), columnSize(matrices));
@@ -25,17 +45,16 @@ public class SuperMatrix extends AbstractMatrix {
         throw new CardinalityException(rowSize(), m.rowSize());
       }
     }
-    columnSizes = new int[matrices.length];
-
-    for (int i = 0; i < matrices.length; i++) {
-      columnSizes[i] = matrices[i].columnSize();
-    }
-
     this.columnLabelBindings = Maps.newHashMap();
-    int[] offsets = new int[matrices.length];
-    offsets[0] = 0;
-    for(int i = 1; i<offsets.length; i++) {
-      offsets[i] = offsets[i-1]+matrices[i-1].columnSize();
+    offsets = new int[matrices.length + 1];
+    for(int i = 0; i<matrices.length; i++) {
+      offsets[i+1] = offsets[i]+matrices[i].columnSize();
+    }
+    if (columnSize() <= MAX_LOOKUP_COLUMNS && matrices.length <= Short.MAX_VALUE) {
+      columnMatrices = new short[columnSize()];
+      for (int i = 0; i < matrices.length; i++) {
+        Arrays.fill(columnMatrices, offsets[i], offsets[i + 1], (short) i);
+      }
     }
 
 
@@ -51,33 +70,118 @@ public class SuperMatrix extends AbstractMatrix {
 
   }
 
+  public ExecutorService getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Sub-matrices are read concurrently on the executor in {@link #viewRow(int)} and {@link #viewRows(int[])}, so
+   * that the latency of a row tracks the slowest sub-matrix rather than the sum of all; see
+   * {@link #newFanOutExecutor()}. The executor is not shut down by this matrix.
+   * @param executor the executor, or null to read sub-matrices one after another in the calling thread
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * @return an executor that starts a virtual thread per task if the runtime supports them (Java 21+), and an
+   * unbounded pool of daemon threads otherwise
+   */
+  public static ExecutorService newFanOutExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (Exception e) {
+      return Executors.newCachedThreadPool(
+         new ThreadFactoryBuilder().setDaemon(true).setNameFormat("super-matrix-%d").build());
+    }
+  }
+
+  /**
+   * Runs tasks on the executor if set; the first task is run in the calling thread
+   * @param tasks number of tasks, usually one per sub-matrix
+   * @param task reads a sub-matrix, or a group of them
+   * @return results of the tasks, by task index
+   */
+  protected <T> Object[] fanOut(int tasks, final FanOutTask<T> task) {
+    Object[] results = new Object[tasks];
+    ExecutorService executor = this.executor;
+    if (executor == null || tasks == 1) {
+      for (int i = 0; i < tasks; i++) {
+        results[i] = task.apply(i);
+      }
+      return results;
+    }
+    Future<?>[] futures = new Future<?>[tasks];
+    for (int i = 1; i < tasks; i++) {
+      final int index = i;
+      futures[i] = executor.submit(new Callable<T>() {
+        @Override
+        public T call() {
+          return task.apply(index);
+        }
+      });
+    }
+    results[0] = task.apply(0);
+    for (int i = 1; i < tasks; i++) {
+      try {
+        results[i] = Uninterruptibles.getUninterruptibly(futures[i]);
+      } catch (ExecutionException e) {
+        throw Throwables.propagate(e.getCause());
+      }
+    }
+    return results;
+  }
+
+  protected interface FanOutTask<T> {
+    T apply(int index);
+  }
+
   @Override
   public Matrix assignColumn(int column, Vector other) {
-    int[] indexes = findMatrixAndColumn(column);
-    matrices[indexes[0]].assignColumn(indexes[1], other);
+    int matrix = matrixOf(column);
+    matrices[matrix].assignColumn(column - offsets[matrix], other);
     return this;
   }
 
   @Override
   public Matrix assignRow(int row, Vector other) {
-    int offset = 0;
     for (int i = 0; i < matrices.length; i++) {
-      matrices[i].assignRow(row, other.viewPart(offset, columnSizes[i]));
-      offset += columnSizes[i];
+      matrices[i].assignRow(row, other.viewPart(offsets[i], offsets[i + 1] - offsets[i]));
     }
     return this;
   }
 
   @Override
   public double getQuick(int row, int column) {
-    int[] indexes = findMatrixAndColumn(column);
-    return matrices[indexes[0]].getQuick(row, indexes[1]);
+    int matrix = matrixOf(column);
+    return matrices[matrix].getQuick(row, column - offsets[matrix]);
+  }
+
+  /**
+   * Bulk version of {@link #getQuick(int, int)}: each sub-matrix row is viewed once for consecutive columns that
+   * fall into the same sub-matrix, so sorted columns are read with at most one row view per sub-matrix.
+   * @param row the row
+   * @param columns the columns to be read
+   * @param values receives the values, aligned with columns
+   */
+  public void getQuick(int row, int[] columns, double[] values) {
+    int current = -1;
+    Vector subRow = null;
+    for (int i = 0; i < columns.length; i++) {
+      int matrix = matrixOf(columns[i]);
+      if (matrix != current) {
+        current = matrix;
+        subRow = matrices[matrix].viewRow(row);
+      }
+      values[i] = subRow.getQuick(columns[i] - offsets[matrix]);
+    }
   }
 
   @Override
   public void setQuick(int row, int column, double value) {
-    int[] indexes = findMatrixAndColumn(column);
-    matrices[indexes[0]].setQuick(row, indexes[1], value);
+    int matrix = matrixOf(column);
+    matrices[matrix].setQuick(row, column - offsets[matrix], value);
   }
 
   @Override
@@ -89,7 +193,7 @@ public class SuperMatrix extends AbstractMatrix {
   public Matrix like() {
     Matrix[] matrices = new Matrix[this.matrices.length];
     for (int i = 0; i < matrices.length; i++) {
-      matrices[i] = this.matrices[i].like(rowSize(), columnSizes[i]);
+      matrices[i] = this.matrices[i].like(rowSize(), offsets[i + 1] - offsets[i]);
     }
     return new SuperMatrix(matrices);
   }
@@ -104,26 +208,98 @@ public class SuperMatrix extends AbstractMatrix {
 //    return new VectorView(super.viewRow(row), 0, columnSize());
     int cardinality = this.columnSize();
     Vector[] vectors = new Vector[matrices.length];
-    for (int i = 0; i < matrices.length; i++) {
-      vectors[i] = matrices[i].viewRow(row);
+    if (executor == null) {
+      for (int i = 0; i < matrices.length; i++) {
+        vectors[i] = matrices[i].viewRow(row);
+      }
+    } else {
+      final int r = row;
+      Object[] results = fanOut(matrices.length, new FanOutTask<Vector>() {
+        @Override
+        public Vector apply(int matrix) {
+          return matrices[matrix].viewRow(r);
+        }
+      });
+      System.arraycopy(results, 0, vectors, 0, vectors.length);
     }
     return new VectorSuperView(cardinality, vectors);
   }
 
+  /**
+   * Views multiple rows at once; each sub-matrix is asked for all of the rows in a single call to
+   * {@link #viewRows(int, int[])}, so that matrices supporting bulk loading can fetch them in a batch.
+   * @param rows rows to be viewed
+   * @return row vectors, aligned with rows
+   */
+  public Vector[] viewRows(final int[] rows) {
+    Vector[][] subVectors = new Vector[matrices.length][];
+    Object[] results = fanOut(matrices.length, new FanOutTask<Vector[]>() {
+      @Override
+      public Vector[] apply(int matrix) {
+        return viewRows(matrix, rows);
+      }
+    });
+    System.arraycopy(results, 0, subVectors, 0, subVectors.length);
+    return joinRows(subVectors, rows.length);
+  }
+
+  /**
+   * @param subVectors rows of each sub-matrix
+   * @param numRows number of rows
+   * @return row vectors adjoining the rows of sub-matrices
+   */
+  protected Vector[] joinRows(Vector[][] subVectors, int numRows) {
+    int cardinality = this.columnSize();
+    Vector[] result = new Vector[numRows];
+    for (int r = 0; r < numRows; r++) {
+      Vector[] vectors = new Vector[matrices.length];
+      for (int i = 0; i < matrices.length; i++) {
+        vectors[i] = subVectors[i][r];
+      }
+      result[r] = new VectorSuperView(cardinality, vectors);
+    }
+    return result;
+  }
+
+  /**
+   * @param matrix index of the sub-matrix
+   * @param rows rows to be viewed
+   * @return rows of the sub-matrix, aligned with rows
+   */
+  protected Vector[] viewRows(int matrix, int[] rows) {
+    Vector[] vectors = new Vector[rows.length];
+    for (int r = 0; r < rows.length; r++) {
+      vectors[r] = matrices[matrix].viewRow(rows[r]);
+    }
+    return vectors;
+  }
+
   @Override
   public Vector viewColumn(int column) {
-    int[] indexes = findMatrixAndColumn(column);
-    return matrices[indexes[0]].viewColumn(indexes[1]);
+    int matrix = matrixOf(column);
+    return matrices[matrix].viewColumn(column - offsets[matrix]);
   }
 
-  private int[] findMatrixAndColumn(int column) {
-    int i = 0;
-    int ithColumnSize = columnSizes[0];
-    while (column >= ithColumnSize) {
-      column -= ithColumnSize;
-      ithColumnSize = columnSizes[++i];
+  /**
+   * @param column a column of this matrix
+   * @return the sub-matrix the column falls into, from the lookup table or by binary search over offsets; matrices
+   * without columns are skipped
+   */
+  private int matrixOf(int column) {
+    if (columnMatrices != null) {
+      return columnMatrices[column];
+    }
+    int low = 0;
+    int high = matrices.length - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (offsets[mid] <= column) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
     }
-    return new int[]{i, column};
+    return low;
   }
 
 
@@ -1,7 +1,6 @@
 package com.personaissance.persona.contentdb.matrix;
 
 import com.google.common.collect.AbstractIterator;
-import com.google.common.collect.Lists;
 import org.apache.mahout.math.AbstractVector;
 import org.apache.mahout.math.Matrix;
 import org.apache.mahout.math.OrderedIntDoubleMapping;
@@ -9,31 +8,28 @@ import org.apache.mahout.math.SequentialAccessSparseVector;
 import org.apache.mahout.math.SparseRowMatrix;
 import org.apache.mahout.math.Vector;
 
-import java.util.ArrayList;
 import java.util.Iterator;
 
 
+/**
+ * Adjoins multiple vectors into a single vector, without copying them at construction: indices are routed to
+ * sub-vectors by binary search over their offsets, and non-zeros are gathered into primitive arrays the first time
+ * they are iterated. Sub-vectors should not be modified other than through this view.
+ */
 public class VectorSuperView extends AbstractVector {
-  Vector[] vectors;
-  int[] sizes;
-  ArrayList<Integer> indices = Lists.newArrayList();
-  ArrayList<Double> values = Lists.newArrayList();
+  final Vector[] vectors;
+  /**
+   * offsets[i] is the index of the first element of vectors[i]; offsets[vectors.length] is the total size
+   */
+  final int[] offsets;
+  private NonZeros nonZeros = null;
 
   public VectorSuperView(int cardinality, Vector[] vectors) {
     super(cardinality);
     this.vectors = vectors;
-    sizes = new int[vectors.length];
+    offsets = new int[vectors.length + 1];
     for (int i = 0; i < vectors.length; i++) {
-      sizes[i] = vectors[i].size();
-    }
-
-    int offset = 0;
-    for (int i = 0; i < vectors.length; i++) {
-      for (Vector.Element element : vectors[i].nonZeroes()) {
-        indices.add(element.index() + offset);
-        values.add(element.get());
-      }
-      offset += sizes[i];
+      offsets[i + 1] = offsets[i] + vectors[i].size();
     }
   }
 
@@ -44,13 +40,60 @@ public class VectorSuperView extends AbstractVector {
       for (Vector.Element element : vectors[i].nonZeroes()) {
         v.setQuick(element.index() + offset, element.get());
       }
+      offset += vectors[i].size();
     }
     return v;
   }
 
   @Override
   public int getNumNondefaultElements() {
-    return indices.size();
+    NonZeros nonZeros = this.nonZeros;
+    if (nonZeros != null) {
+      return nonZeros.size;
+    }
+    int numNondefaultElements = 0;
+    for (Vector v : vectors) {
+      numNondefaultElements += v.getNumNondefaultElements();
+    }
+    return numNondefaultElements;
+  }
+
+  /**
+   * Non-zeros of all sub-vectors, with shifted indices
+   */
+  private static final class NonZeros {
+    private final int[] indices;
+    private final double[] values;
+    private final int size;
+
+    private NonZeros(int[] indices, double[] values, int size) {
+      this.indices = indices;
+      this.values = values;
+      this.size = size;
+    }
+  }
+
+  private NonZeros nonZeros() {
+    NonZeros nonZeros = this.nonZeros;
+    if (nonZeros == null) {
+      int capacity = 0;
+      for (Vector v : vectors) {
+        capacity += v.getNumNondefaultElements();
+      }
+      int[] indices = new int[capacity];
+      double[] values = new double[capacity];
+      int size = 0;
+      for (int i = 0; i < vectors.length; i++) {
+        for (Element element : vectors[i].nonZeroes()) {
+          indices[size] = element.index() + offsets[i];
+          values[size] = element.get();
+          size++;
+        }
+      }
+      nonZeros = new NonZeros(indices, values, size);
+      this.nonZeros = nonZeros;
+    }
+    return nonZeros;
   }
 
   @Override
@@ -81,8 +124,16 @@ public class VectorSuperView extends AbstractVector {
     return false;
   }
 
+  /**
+   * Non-zeros are iterated in order of index only if each sub-vector iterates them in order
+   */
   @Override
   public boolean isSequentialAccess() {
+    for (Vector v : vectors) {
+      if (!v.isSequentialAccess()) {
+        return false;
+      }
+    }
     return true;
   }
 
@@ -93,9 +144,10 @@ public class VectorSuperView extends AbstractVector {
     double[] values = updates.getValues();
 
     for (int i = 0; i < noUpdates; i++) {
-      int[] vectorAndColumn = getVectorAndColumn(indices[i]);
-      this.vectors[vectorAndColumn[0]].setQuick(vectorAndColumn[1], values[i]);
+      int vector = vectorOf(indices[i]);
+      this.vectors[vector].setQuick(indices[i] - offsets[vector], values[i]);
     }
+    nonZeros = null;
   }
 
   @Override
@@ -113,38 +165,16 @@ public class VectorSuperView extends AbstractVector {
     return new SparseRowMatrix(rows, columns);
   }
 
-  private final class RandomAccessIterator extends AbstractIterator<Element> {
-    private final RandomAccessElement element;
-
-    private int offset;
-
-    private RandomAccessIterator() {
-      this.element = new RandomAccessElement();
-    }
-
-    @Override
-    protected Element computeNext() {
-      if (offset >= indices.size()) {
-        return endOfData();
-      }
-      element.index = indices.get(offset);
-      offset++;
-      return element;
-    }
-
-  }
-
   private final class SequentialIterator extends AbstractIterator<Element> {
 
-    private final NonDefaultElement element = new NonDefaultElement();
+    private final NonDefaultElement element = new NonDefaultElement(nonZeros());
 
     @Override
     protected Element computeNext() {
-      int size = values.size();
-      if (size <= 0 || element.getNextOffset() >= size) {
+      if (element.offset + 1 >= element.nonZeros.size) {
         return endOfData();
       }
-      element.advanceOffset();
+      element.offset++;
       return element;
     }
 
@@ -188,45 +218,41 @@ public class VectorSuperView extends AbstractVector {
     @Override
     public void set(double value) {
       invalidateCachedLength();
-      if (value == 0.0) {
-        setQuick(index, value);
-      }
+      setQuick(index, value);
     }
   }
 
   private final class NonDefaultElement implements Element {
 
+    private final NonZeros nonZeros;
     private int offset = -1;
 
-    void advanceOffset() {
-      offset++;
-    }
-
-    int getNextOffset() {
-      return offset + 1;
+    private NonDefaultElement(NonZeros nonZeros) {
+      this.nonZeros = nonZeros;
     }
 
     @Override
     public double get() {
-      return values.get(offset);
+      return nonZeros.values[offset];
     }
 
     @Override
     public int index() {
-      return indices.get(offset);
+      return nonZeros.indices[offset];
     }
 
     @Override
     public void set(double value) {
       invalidateCachedLength();
+      nonZeros.values[offset] = value;
       setQuick(index(), value);
     }
   }
 
   @Override
   public double getQuick(int index) {
-    int[] vectorAndColumn = getVectorAndColumn(index);
-    return vectors[vectorAndColumn[0]].getQuick(vectorAndColumn[1]);
+    int vector = vectorOf(index);
+    return vectors[vector].getQuick(index - offsets[vector]);
   }
 
   @Override
@@ -240,20 +266,26 @@ public class VectorSuperView extends AbstractVector {
 
   @Override
   public void setQuick(int index, double value) {
-    if (value != 0 && !indices.contains(index)) {
-      indices.add(index);
-      values.add(value);
-    }
-    int[] vectorAndColumn = getVectorAndColumn(index);
-    vectors[vectorAndColumn[0]].setQuick(vectorAndColumn[1], value);
+    int vector = vectorOf(index);
+    vectors[vector].setQuick(index - offsets[vector], value);
+    nonZeros = null;
   }
 
-  private int[] getVectorAndColumn(int index) {
-    int i = 0;
-
-    while (index >= sizes[i]) {
-      index -= sizes[i++];
+  /**
+   * @param index an index of this vector
+   * @return the sub-vector the index falls into; empty sub-vectors are skipped
+   */
+  private int vectorOf(int index) {
+    int low = 0;
+    int high = vectors.length - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (offsets[mid] <= index) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
     }
-    return new int[]{i, index};
+    return low;
   }
-}
\ No newline at end of file
+}
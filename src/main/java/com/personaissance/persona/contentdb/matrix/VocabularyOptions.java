@@ -0,0 +1,127 @@
+package com.personaissance.persona.contentdb.matrix;
+
+import com.personaissance.persona.contentdb.matrix.text.FeatureHasher;
+import com.google.common.base.Preconditions;
+
+/**
+ * {@author} gcapan
+ * Options of the column space of a TEXT or MULTINOMIAL {@link SolrFieldMatrix}. The vocabulary is read from field
+ * facets, page by page in decreasing order of document frequency, and pruned by document frequency and size.
+ * <p/>
+ * With a capacity larger than the maximum size, the vocabulary is growable: columns up to the capacity are reserved,
+ * and terms indexed after construction are appended as new columns when the vocabulary is refreshed. Existing columns
+ * never move, so cached rows stay valid.
+ * <p/>
+ * With hash bits set, there is no vocabulary at all: terms are hashed to 2^bits columns by a {@link FeatureHasher},
+ * which takes constant memory, no warm-up, and gives the same columns on every node. Hashed columns have no labels,
+ * and no document frequencies.
+ */
+public class VocabularyOptions {
+
+  public static final int DEFAULT_MAX_SIZE = 1000;
+  public static final int DEFAULT_PAGE_SIZE = 10000;
+
+  private int minDocumentFrequency = 1;
+  private double maxDocumentFrequencyRatio = 1.0;
+  private int maxSize = DEFAULT_MAX_SIZE;
+  private int pageSize = DEFAULT_PAGE_SIZE;
+  private int capacity = 0;
+  private int hashBits = 0;
+  private int hashSeed = FeatureHasher.DEFAULT_SEED;
+
+  public int getMinDocumentFrequency() {
+    return minDocumentFrequency;
+  }
+
+  /**
+   * @param minDocumentFrequency terms in fewer documents are pruned
+   */
+  public VocabularyOptions setMinDocumentFrequency(int minDocumentFrequency) {
+    Preconditions.checkArgument(minDocumentFrequency > 0, "minDocumentFrequency must be positive");
+    this.minDocumentFrequency = minDocumentFrequency;
+    return this;
+  }
+
+  public double getMaxDocumentFrequencyRatio() {
+    return maxDocumentFrequencyRatio;
+  }
+
+  /**
+   * @param maxDocumentFrequencyRatio terms in a larger fraction of documents are pruned, e.g. stop words
+   */
+  public VocabularyOptions setMaxDocumentFrequencyRatio(double maxDocumentFrequencyRatio) {
+    Preconditions.checkArgument(maxDocumentFrequencyRatio > 0 && maxDocumentFrequencyRatio <= 1,
+       "maxDocumentFrequencyRatio must be in (0, 1]");
+    this.maxDocumentFrequencyRatio = maxDocumentFrequencyRatio;
+    return this;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @param maxSize maximum number of columns read at construction; the most frequent terms are kept
+   */
+  public VocabularyOptions setMaxSize(int maxSize) {
+    Preconditions.checkArgument(maxSize > 0, "maxSize must be positive");
+    this.maxSize = maxSize;
+    return this;
+  }
+
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * @param pageSize number of terms read by a single facet request
+   */
+  public VocabularyOptions setPageSize(int pageSize) {
+    Preconditions.checkArgument(pageSize > 0, "pageSize must be positive");
+    this.pageSize = pageSize;
+    return this;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @param capacity number of reserved columns of a growable vocabulary; 0 for a fixed vocabulary
+   */
+  public VocabularyOptions setCapacity(int capacity) {
+    Preconditions.checkArgument(capacity >= 0, "capacity must not be negative");
+    this.capacity = capacity;
+    return this;
+  }
+
+  public boolean isGrowable() {
+    return capacity > maxSize;
+  }
+
+  public int getHashBits() {
+    return hashBits;
+  }
+
+  /**
+   * @param hashBits log2 of the number of hashed columns, at most 30; 0 to read a vocabulary
+   */
+  public VocabularyOptions setHashBits(int hashBits) {
+    Preconditions.checkArgument(hashBits >= 0 && hashBits <= 30, "hashBits must be in [0, 30]");
+    this.hashBits = hashBits;
+    return this;
+  }
+
+  public int getHashSeed() {
+    return hashSeed;
+  }
+
+  public VocabularyOptions setHashSeed(int hashSeed) {
+    this.hashSeed = hashSeed;
+    return this;
+  }
+
+  public boolean isHashed() {
+    return hashBits > 0;
+  }
+}
@@ -0,0 +1,98 @@
+package com.personaissance.persona.contentdb.matrix.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.apache.mahout.math.Vector;
+
+import java.util.Map;
+
+/**
+ * {@author} gcapan
+ * A concurrent {@link RowCache} with LRU eviction, bounded either by the number of rows or by the total number of
+ * non-zero elements in the cached rows.
+ */
+public class BoundedRowCache implements RowCache {
+
+  private final Cache<Integer, Vector> cache;
+
+  private BoundedRowCache(Cache<Integer, Vector> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * @param maxRows max number of rows to be cached
+   * @return a cache bounded by number of rows
+   */
+  public static BoundedRowCache withMaximumRows(long maxRows) {
+    Preconditions.checkArgument(maxRows >= 0, "maxRows should be non-negative");
+    return new BoundedRowCache(CacheBuilder.newBuilder().
+       maximumSize(maxRows).
+       recordStats().
+       <Integer, Vector>build());
+  }
+
+  /**
+   * @param maxNonZeros max number of non-zero elements in all cached rows; an empty row is counted as one
+   * @return a cache bounded by number of non-zero elements
+   */
+  public static BoundedRowCache withMaximumNonZeros(long maxNonZeros) {
+    Preconditions.checkArgument(maxNonZeros >= 0, "maxNonZeros should be non-negative");
+    return new BoundedRowCache(CacheBuilder.newBuilder().
+       maximumWeight(maxNonZeros).
+       weigher(new Weigher<Integer, Vector>() {
+         @Override
+         public int weigh(Integer row, Vector vector) {
+           return Math.max(1, vector.getNumNondefaultElements());
+         }
+       }).
+       recordStats().
+       <Integer, Vector>build());
+  }
+
+  @Override
+  public Vector get(int row) {
+    return cache.getIfPresent(row);
+  }
+
+  @Override
+  public void put(int row, Vector vector) {
+    cache.put(row, vector);
+  }
+
+  @Override
+  public void invalidate(int row) {
+    cache.invalidate(row);
+  }
+
+  @Override
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  @Override
+  public Map<Integer, Vector> asMap() {
+    return cache.asMap();
+  }
+
+  @Override
+  public long size() {
+    return cache.size();
+  }
+
+  @Override
+  public long hitCount() {
+    return cache.stats().hitCount();
+  }
+
+  @Override
+  public long missCount() {
+    return cache.stats().missCount();
+  }
+
+  @Override
+  public long evictionCount() {
+    return cache.stats().evictionCount();
+  }
+}
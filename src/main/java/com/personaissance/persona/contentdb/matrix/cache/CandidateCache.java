@@ -0,0 +1,177 @@
+package com.personaissance.persona.contentdb.matrix.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Iterators;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@author} gcapan
+ * Caches candidate sets of {@link com.personaissance.persona.contentdb.matrix.SolrFieldMatrix#getCandidates}
+ * queries, keyed by field and the parameters of the query, in any order. Sets expire after a time to live, and are
+ * all invalidated when writes through a matrix using the cache are released after a commit, when a batch of an
+ * ingester is sent, or when the version of the index changes, if the version is checked. Only the time to live and
+ * the version check cover documents that become searchable by the autoCommit settings of the core.
+ * <p>
+ * A set whose fetch was running when the sets were invalidated may predate the invalidation, and is not kept.
+ * <p>
+ * Cached sets are shared by all callers, and should not be modified; copy them with {@link FastIDSet#clone()}
+ * before doing so.
+ */
+public class CandidateCache {
+
+  private final Cache<String, FastIDSet> cache;
+  private final Lock versionLock = new ReentrantLock();
+  /**
+   * Incremented by each invalidation, before the sets are invalidated
+   */
+  private final AtomicLong generation = new AtomicLong();
+  private volatile SolrServer versionSource = null;
+  private volatile long versionCheckNanos = 0;
+  private volatile long nextVersionCheck = 0;
+  private volatile long version = -1;
+
+  private CandidateCache(Cache<String, FastIDSet> cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * @param maximumSets maximum number of candidate sets kept
+   * @param timeToLive time a candidate set is kept after it is fetched
+   * @param unit unit of the time to live
+   * @return a cache bounded by number of sets
+   */
+  public static CandidateCache withMaximumSets(long maximumSets, long timeToLive, TimeUnit unit) {
+    return new CandidateCache(CacheBuilder.newBuilder().
+       maximumSize(maximumSets).
+       expireAfterWrite(timeToLive, unit).
+       recordStats().
+       <String, FastIDSet>build());
+  }
+
+  /**
+   * Invalidates all candidate sets whenever the version of the index changes, which is checked at most once per
+   * interval, when a candidate set is requested
+   * @param server server of the index, whose version is read from the Luke handler
+   * @param interval interval between two checks
+   * @param unit unit of the interval
+   */
+  public void setIndexVersionCheck(SolrServer server, long interval, TimeUnit unit) {
+    Preconditions.checkArgument(interval > 0, "interval should be positive");
+    this.versionCheckNanos = unit.toNanos(interval);
+    this.nextVersionCheck = System.nanoTime();
+    this.versionSource = server;
+  }
+
+  /**
+   * @param field the field queried
+   * @param params parameters of the query
+   * @return key of the query, independent of the order parameters are set in
+   */
+  public static String key(String field, SolrParams params) {
+    StringBuilder key = new StringBuilder(field);
+    String[] names = Iterators.toArray(params.getParameterNamesIterator(), String.class);
+    Arrays.sort(names);
+    for (String name : names) {
+      for (String value : params.getParams(name)) {
+        key.append('&').append(name).append('=').append(value);
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * @param key key of the query
+   * @param loader fetches the candidate set if it is not cached
+   * @return the shared candidate set
+   * @throws ExecutionException if the candidate set could not be fetched
+   */
+  public FastIDSet get(String key, final Callable<FastIDSet> loader) throws ExecutionException {
+    checkVersion();
+    final long[] loadedIn = {-1};
+    FastIDSet candidates = cache.get(key, new Callable<FastIDSet>() {
+      @Override
+      public FastIDSet call() throws Exception {
+        loadedIn[0] = generation.get();
+        return loader.call();
+      }
+    });
+    //the set was fetched by this call, and the sets were invalidated while it was fetched
+    if (loadedIn[0] != -1 && loadedIn[0] != generation.get()) {
+      cache.invalidate(key);
+    }
+    return candidates;
+  }
+
+  public void invalidateAll() {
+    generation.incrementAndGet();
+    cache.invalidateAll();
+  }
+
+  private void checkVersion() {
+    SolrServer server = versionSource;
+    if (server == null || System.nanoTime() - nextVersionCheck < 0 || !versionLock.tryLock()) {
+      return;
+    }
+    try {
+      nextVersionCheck = System.nanoTime() + versionCheckNanos;
+      long current = readVersion(server);
+      if (current != version) {
+        version = current;
+        invalidateAll();
+      }
+    } catch (SolrServerException e) {
+      //sets are kept until the next check
+    } finally {
+      versionLock.unlock();
+    }
+  }
+
+  private static long readVersion(SolrServer server) throws SolrServerException {
+    SolrQuery query = new SolrQuery();
+    query.setRequestHandler("/admin/luke").
+       setParam("show", "index").
+       setParam("numTerms", "0");
+    NamedList<?> index = (NamedList<?>) server.query(query).getResponse().get("index");
+    return ((Number) index.get("version")).longValue();
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  public long hitCount() {
+    return cache.stats().hitCount();
+  }
+
+  public long missCount() {
+    return cache.stats().missCount();
+  }
+
+  public double hitRate() {
+    return cache.stats().hitRate();
+  }
+
+  public long evictionCount() {
+    return cache.stats().evictionCount();
+  }
+}
@@ -0,0 +1,248 @@
+package com.personaissance.persona.contentdb.matrix.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.function.IntLongProcedure;
+import org.apache.mahout.math.list.IntArrayList;
+import org.apache.mahout.math.map.OpenIntLongHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@author} gcapan
+ * A {@link RowCache} that keeps rows outside of the Java heap, in CSR-like records appended to fixed size segments
+ * of direct or memory-mapped buffers. The only on-heap structures are a primitive row to record offset index, and
+ * the list of rows per segment. Rows are returned as read-only flyweight views over the segments.
+ * <p/>
+ * When all segments are full, the oldest segment is recycled and all of its rows are evicted. A recycled segment
+ * gets a new buffer, mapped from a new file in the directory mode, so views of evicted rows remain valid as long as
+ * they are referenced.
+ */
+public class OffHeapRowCache implements RowCache {
+
+  private final int columns;
+  private final int segmentBytes;
+  private final ByteBuffer[] segments;
+  private final IntArrayList[] segmentRows;
+  private final File directory;
+  private final File[] segmentFiles;
+  private long generation = 0;
+  private final OpenIntLongHashMap index = new OpenIntLongHashMap();
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private int currentSegment = -1;
+  private int position;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Creates a cache on direct buffers
+   * @param columns cardinality of the rows
+   * @param segmentBytes size of a segment; rows larger than a segment are not cached
+   * @param maxSegments max number of segments
+   */
+  public OffHeapRowCache(int columns, int segmentBytes, int maxSegments) {
+    this(columns, segmentBytes, maxSegments, null);
+  }
+
+  /**
+   * Creates a cache on files mapped into memory, which are created in directory as segment-{n}-{generation}.bin;
+   * the file of a recycled segment is deleted, and unmapped once no view of its rows is referenced
+   * @param columns cardinality of the rows
+   * @param segmentBytes size of a segment; rows larger than a segment are not cached
+   * @param maxSegments max number of segments
+   * @param directory the directory segment files are created in, null for direct buffers
+   */
+  public OffHeapRowCache(int columns, int segmentBytes, int maxSegments, File directory) {
+    Preconditions.checkArgument(segmentBytes > 0, "segmentBytes should be positive");
+    Preconditions.checkArgument(maxSegments > 0, "maxSegments should be positive");
+    this.columns = columns;
+    this.segmentBytes = segmentBytes;
+    this.segments = new ByteBuffer[maxSegments];
+    this.segmentRows = new IntArrayList[maxSegments];
+    this.directory = directory;
+    this.segmentFiles = new File[maxSegments];
+  }
+
+  @Override
+  public Vector get(int row) {
+    long location;
+    ByteBuffer segment;
+    lock.readLock().lock();
+    try {
+      location = index.get(row);
+      segment = location == 0 ? null : segments[segment(location)];
+    } finally {
+      lock.readLock().unlock();
+    }
+    if (segment == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return new OffHeapVector(columns, segment, offset(location));
+  }
+
+  @Override
+  public void put(int row, Vector vector) {
+    int size = OffHeapVector.sizeOf(vector);
+    if (size > segmentBytes) {
+      invalidate(row);
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      if (currentSegment < 0 || position + size > segmentBytes) {
+        nextSegment();
+      }
+      OffHeapVector.write(vector, segments[currentSegment], position);
+      index.put(row, location(currentSegment, position));
+      segmentRows[currentSegment].add(row);
+      position += size;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void nextSegment() {
+    currentSegment = (currentSegment + 1) % segments.length;
+    position = 0;
+    if (segmentRows[currentSegment] != null) {
+      evict(currentSegment);
+    } else {
+      segmentRows[currentSegment] = new IntArrayList();
+    }
+    segments[currentSegment] = allocate(currentSegment);
+  }
+
+  private void evict(int segment) {
+    IntArrayList rows = segmentRows[segment];
+    for (int i = 0; i < rows.size(); i++) {
+      int row = rows.getQuick(i);
+      long location = index.get(row);
+      //the row may have been invalidated, or written again to another segment since
+      if (location != 0 && segment(location) == segment) {
+        index.removeKey(row);
+        evictions.incrementAndGet();
+      }
+    }
+    rows.clear();
+  }
+
+  private ByteBuffer allocate(int segment) {
+    if (directory == null) {
+      return ByteBuffer.allocateDirect(segmentBytes);
+    }
+    File previous = segmentFiles[segment];
+    segmentFiles[segment] = new File(directory, "segment-" + segment + "-" + generation++ + ".bin");
+    if (previous != null && !previous.delete()) {
+      //still mapped, on platforms that do not allow deleting mapped files
+      previous.deleteOnExit();
+    }
+    try {
+      RandomAccessFile file = new RandomAccessFile(segmentFiles[segment], "rw");
+      try {
+        file.setLength(segmentBytes);
+        return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+      } finally {
+        file.close();
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static long location(int segment, int offset) {
+    return ((long) (segment + 1) << 32) | offset;
+  }
+
+  private static int segment(long location) {
+    return (int) (location >>> 32) - 1;
+  }
+
+  private static int offset(long location) {
+    return (int) location;
+  }
+
+  @Override
+  public void invalidate(int row) {
+    lock.writeLock().lock();
+    try {
+      index.removeKey(row);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void invalidateAll() {
+    lock.writeLock().lock();
+    try {
+      index.clear();
+      for (IntArrayList rows : segmentRows) {
+        if (rows != null) {
+          rows.clear();
+        }
+      }
+      currentSegment = -1;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return a copy of the index, with views of the cached rows
+   */
+  @Override
+  public Map<Integer, Vector> asMap() {
+    final Map<Integer, Vector> rows = Maps.newHashMap();
+    lock.readLock().lock();
+    try {
+      index.forEachPair(new IntLongProcedure() {
+        @Override
+        public boolean apply(int row, long location) {
+          rows.put(row, new OffHeapVector(columns, segments[segment(location)], offset(location)));
+          return true;
+        }
+      });
+    } finally {
+      lock.readLock().unlock();
+    }
+    return rows;
+  }
+
+  @Override
+  public long size() {
+    lock.readLock().lock();
+    try {
+      return index.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public long hitCount() {
+    return hits.get();
+  }
+
+  @Override
+  public long missCount() {
+    return misses.get();
+  }
+
+  @Override
+  public long evictionCount() {
+    return evictions.get();
+  }
+}
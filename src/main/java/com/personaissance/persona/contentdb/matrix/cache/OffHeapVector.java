@@ -0,0 +1,203 @@
+package com.personaissance.persona.contentdb.matrix.cache;
+
+import com.google.common.collect.AbstractIterator;
+import org.apache.mahout.math.AbstractVector;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.OrderedIntDoubleMapping;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.SparseRowMatrix;
+import org.apache.mahout.math.Vector;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * {@author} gcapan
+ * A read-only flyweight view of a sparse row stored in a {@link ByteBuffer}, as written by {@link #write}: the
+ * number of non-zeros, followed by (column index, value) pairs in ascending order of index. Nothing is copied to the
+ * heap.
+ */
+final class OffHeapVector extends AbstractVector {
+
+  private final ByteBuffer buffer;
+  private final int nonZeros;
+  private final int entriesPosition;
+
+  OffHeapVector(int cardinality, ByteBuffer buffer, int position) {
+    super(cardinality);
+    this.buffer = buffer;
+    this.nonZeros = buffer.getInt(position);
+    this.entriesPosition = position + 4;
+  }
+
+  /**
+   * @param vector a vector
+   * @return number of bytes the vector takes when written
+   */
+  static int sizeOf(Vector vector) {
+    return 4 + 12 * vector.getNumNondefaultElements();
+  }
+
+  /**
+   * Writes a vector to the buffer at position; the buffer should have {@link #sizeOf(Vector)} bytes remaining there.
+   */
+  static void write(Vector vector, ByteBuffer buffer, int position) {
+    if (!vector.isSequentialAccess()) {
+      vector = new SequentialAccessSparseVector(vector);
+    }
+    int nonZeros = 0;
+    for (Vector.Element element : vector.nonZeroes()) {
+      int entryPosition = position + 4 + 12 * nonZeros;
+      buffer.putInt(entryPosition, element.index());
+      buffer.putDouble(entryPosition + 4, element.get());
+      nonZeros++;
+    }
+    buffer.putInt(position, nonZeros);
+  }
+
+  private int indexAt(int i) {
+    return buffer.getInt(entriesPosition + 12 * i);
+  }
+
+  private double valueAt(int i) {
+    return buffer.getDouble(entriesPosition + 12 * i + 4);
+  }
+
+  @Override
+  public double getQuick(int index) {
+    int low = 0;
+    int high = nonZeros - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int midIndex = indexAt(mid);
+      if (midIndex < index) {
+        low = mid + 1;
+      } else if (midIndex > index) {
+        high = mid - 1;
+      } else {
+        return valueAt(mid);
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public void setQuick(int index, double value) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Vector like() {
+    return new SequentialAccessSparseVector(size());
+  }
+
+  @Override
+  public int getNumNondefaultElements() {
+    return nonZeros;
+  }
+
+  @Override
+  public double getLookupCost() {
+    return Math.max(1, Math.round(Math.log(nonZeros) / Math.log(2)));
+  }
+
+  @Override
+  public double getIteratorAdvanceCost() {
+    return 1;
+  }
+
+  @Override
+  public boolean isAddConstantTime() {
+    return false;
+  }
+
+  @Override
+  public boolean isDense() {
+    return false;
+  }
+
+  @Override
+  public boolean isSequentialAccess() {
+    return true;
+  }
+
+  @Override
+  public void mergeUpdates(OrderedIntDoubleMapping updates) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  protected Matrix matrixLike(int rows, int columns) {
+    return new SparseRowMatrix(rows, columns);
+  }
+
+  @Override
+  protected Iterator<Element> iterator() {
+    return new AbstractIterator<Element>() {
+      private final RandomAccessElement element = new RandomAccessElement();
+
+      @Override
+      protected Element computeNext() {
+        if (element.index + 1 < size()) {
+          element.index++;
+          return element;
+        }
+        return endOfData();
+      }
+    };
+  }
+
+  @Override
+  protected Iterator<Element> iterateNonZero() {
+    return new AbstractIterator<Element>() {
+      private final NonDefaultElement element = new NonDefaultElement();
+
+      @Override
+      protected Element computeNext() {
+        if (element.offset + 1 < nonZeros) {
+          element.offset++;
+          return element;
+        }
+        return endOfData();
+      }
+    };
+  }
+
+  private final class RandomAccessElement implements Element {
+    private int index = -1;
+
+    @Override
+    public double get() {
+      return getQuick(index);
+    }
+
+    @Override
+    public int index() {
+      return index;
+    }
+
+    @Override
+    public void set(double value) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private final class NonDefaultElement implements Element {
+    private int offset = -1;
+
+    @Override
+    public double get() {
+      return valueAt(offset);
+    }
+
+    @Override
+    public int index() {
+      return indexAt(offset);
+    }
+
+    @Override
+    public void set(double value) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package com.personaissance.persona.contentdb.matrix.cache;
+
+import org.apache.mahout.math.Vector;
+
+import java.util.Map;
+
+/**
+ * {@author} gcapan
+ * Row store of a {@link com.personaissance.persona.contentdb.matrix.SolrFieldMatrix}, which keeps rows that have
+ * already been fetched from Solr. Implementations should be safe for concurrent use, and are free to evict rows.
+ */
+public interface RowCache {
+
+  /**
+   * @param row the row index
+   * @return the cached row, or null if the row is not (or no longer) cached
+   */
+  Vector get(int row);
+
+  /**
+   * @param row the row index
+   * @param vector the row to be cached
+   */
+  void put(int row, Vector vector);
+
+  /**
+   * Removes a row, so that it is fetched again the next time it is viewed
+   * @param row the row index
+   */
+  void invalidate(int row);
+
+  void invalidateAll();
+
+  /**
+   * @return a view of the rows currently cached
+   */
+  Map<Integer, Vector> asMap();
+
+  /**
+   * @return number of rows currently cached
+   */
+  long size();
+
+  long hitCount();
+
+  long missCount();
+
+  long evictionCount();
+}
@@ -0,0 +1,310 @@
+package com.personaissance.persona.contentdb.matrix.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import org.apache.mahout.math.MatrixSlice;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * {@author} gcapan
+ * A read-only, memory-mapped snapshot of the rows of a matrix, along with its column label bindings.
+ * <p/>
+ * Rows are kept in CSR layout: sorted row ids, cumulative non-zero counts and byte offsets per row, column indices
+ * of each row delta-encoded as variable length ints, and values as floats or doubles. A snapshot is limited to 2GB.
+ * Sections are streamed through temporary files while a snapshot is written, so that writing it does not hold the
+ * rows on heap.
+ */
+public class RowSnapshot {
+
+  private static final int MAGIC = 0x43444253;
+  private static final int VERSION = 1;
+
+  private final ByteBuffer buffer;
+  private final boolean doublePrecision;
+  private final int columns;
+  private final Map<String, Integer> columnLabelBindings;
+  private final int numRows;
+  private final int rowIdsPosition;
+  private final int nonZeroOffsetsPosition;
+  private final int byteOffsetsPosition;
+  private final int indicesPosition;
+  private final int valuesPosition;
+
+  private RowSnapshot(ByteBuffer buffer) {
+    this.buffer = buffer;
+    Preconditions.checkArgument(buffer.getInt(0) == MAGIC, "Not a row snapshot");
+    Preconditions.checkArgument(buffer.getInt(4) == VERSION, "Unsupported row snapshot version");
+    doublePrecision = buffer.get(8) != 0;
+    columns = buffer.getInt(9);
+    int position = 13;
+    int numLabels = buffer.getInt(position);
+    position += 4;
+    Map<String, Integer> bindings = Maps.newHashMapWithExpectedSize(numLabels);
+    for (int i = 0; i < numLabels; i++) {
+      int column = buffer.getInt(position);
+      int length = buffer.getInt(position + 4);
+      byte[] label = new byte[length];
+      ByteBuffer duplicate = buffer.duplicate();
+      duplicate.position(position + 8);
+      duplicate.get(label);
+      bindings.put(new String(label, Charsets.UTF_8), column);
+      position += 8 + length;
+    }
+    columnLabelBindings = Collections.unmodifiableMap(bindings);
+    numRows = buffer.getInt(position);
+    rowIdsPosition = position + 4;
+    nonZeroOffsetsPosition = rowIdsPosition + 4 * numRows;
+    byteOffsetsPosition = nonZeroOffsetsPosition + 4 * (numRows + 1);
+    int indexBytes = buffer.getInt(byteOffsetsPosition + 4 * (numRows + 1));
+    indicesPosition = byteOffsetsPosition + 4 * (numRows + 1) + 4;
+    valuesPosition = indicesPosition + indexBytes;
+  }
+
+  /**
+   * Maps a snapshot file into memory
+   * @param file a file written by {@link #write(File, int, Map, Iterator, boolean)}
+   * @return the snapshot
+   * @throws IOException
+   */
+  public static RowSnapshot open(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new RowSnapshot(buffer);
+    } finally {
+      Closeables.close(randomAccessFile, true);
+    }
+  }
+
+  /**
+   * Writes rows to a snapshot file
+   * @param file the file to be written
+   * @param columns number of columns
+   * @param columnLabelBindings column label bindings, may be null
+   * @param rows rows, in ascending order of row index
+   * @param doublePrecision whether values are stored as doubles, rather than floats
+   * @throws IOException
+   */
+  public static void write(File file, int columns, Map<String, Integer> columnLabelBindings,
+                           Iterator<MatrixSlice> rows, boolean doublePrecision) throws IOException {
+    //sections are streamed to temporary files next to the snapshot, and appended to it once their sizes are known
+    File directory = file.getAbsoluteFile().getParentFile();
+    Section rowIds = new Section(directory);
+    Section nonZeroOffsets = new Section(directory);
+    Section byteOffsets = new Section(directory);
+    Section indices = new Section(directory);
+    Section values = new Section(directory);
+    try {
+      int numRows = 0;
+      int nonZeros = 0;
+      int previousRow = Integer.MIN_VALUE;
+      nonZeroOffsets.out.writeInt(0);
+      byteOffsets.out.writeInt(0);
+      while (rows.hasNext()) {
+        MatrixSlice row = rows.next();
+        Preconditions.checkArgument(numRows == 0 || row.index() > previousRow, "Rows should be in ascending order");
+        previousRow = row.index();
+        rowIds.out.writeInt(row.index());
+        Vector vector = row.vector();
+        if (!vector.isSequentialAccess()) {
+          vector = new SequentialAccessSparseVector(vector);
+        }
+        int previousColumn = 0;
+        for (Vector.Element element : vector.nonZeroes()) {
+          writeVarInt(indices.out, element.index() - previousColumn);
+          previousColumn = element.index();
+          if (doublePrecision) {
+            values.out.writeDouble(element.get());
+          } else {
+            values.out.writeFloat((float) element.get());
+          }
+          nonZeros++;
+        }
+        nonZeroOffsets.out.writeInt(nonZeros);
+        byteOffsets.out.writeInt(checkedSize(indices));
+        numRows++;
+      }
+      checkedSize(values);
+
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeByte(doublePrecision ? 1 : 0);
+        out.writeInt(columns);
+        if (columnLabelBindings == null) {
+          out.writeInt(0);
+        } else {
+          out.writeInt(columnLabelBindings.size());
+          for (Map.Entry<String, Integer> binding : columnLabelBindings.entrySet()) {
+            byte[] label = binding.getKey().getBytes(Charsets.UTF_8);
+            out.writeInt(binding.getValue());
+            out.writeInt(label.length);
+            out.write(label);
+          }
+        }
+        out.writeInt(numRows);
+        rowIds.writeTo(out);
+        nonZeroOffsets.writeTo(out);
+        byteOffsets.writeTo(out);
+        out.writeInt(checkedSize(indices));
+        indices.writeTo(out);
+        values.writeTo(out);
+      } finally {
+        Closeables.close(out, false);
+      }
+      if (file.length() > Integer.MAX_VALUE) {
+        throw new IOException("A row snapshot is limited to 2GB");
+      }
+    } finally {
+      rowIds.delete();
+      nonZeroOffsets.delete();
+      byteOffsets.delete();
+      indices.delete();
+      values.delete();
+    }
+  }
+
+  private static int checkedSize(Section section) throws IOException {
+    if (section.size > Integer.MAX_VALUE) {
+      throw new IOException("A row snapshot is limited to 2GB");
+    }
+    return (int) section.size;
+  }
+
+  private static void writeVarInt(OutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /**
+   * A section of a snapshot being written, buffered in a temporary file
+   */
+  private static class Section {
+
+    private final File file;
+    private final DataOutputStream out;
+    private long size = 0;
+
+    Section(File directory) throws IOException {
+      file = File.createTempFile("snapshot-", ".section", directory);
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)) {
+        @Override
+        public synchronized void write(int b) throws IOException {
+          super.write(b);
+          size++;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+          super.write(b, off, len);
+          size += len;
+        }
+      });
+    }
+
+    void writeTo(OutputStream target) throws IOException {
+      out.close();
+      InputStream in = new FileInputStream(file);
+      try {
+        ByteStreams.copy(in, target);
+      } finally {
+        Closeables.close(in, true);
+      }
+    }
+
+    void delete() throws IOException {
+      Closeables.close(out, true);
+      if (!file.delete()) {
+        file.deleteOnExit();
+      }
+    }
+  }
+
+  public int columnSize() {
+    return columns;
+  }
+
+  public int numRows() {
+    return numRows;
+  }
+
+  public Map<String, Integer> getColumnLabelBindings() {
+    return columnLabelBindings;
+  }
+
+  /**
+   * @param row the row index
+   * @return a copy of the row, or null if the row is not in the snapshot
+   */
+  public Vector get(int row) {
+    int i = find(row);
+    if (i < 0) {
+      return null;
+    }
+    int nonZeroOffset = buffer.getInt(nonZeroOffsetsPosition + 4 * i);
+    int nonZeros = buffer.getInt(nonZeroOffsetsPosition + 4 * (i + 1)) - nonZeroOffset;
+    int position = indicesPosition + buffer.getInt(byteOffsetsPosition + 4 * i);
+    int valueWidth = doublePrecision ? 8 : 4;
+    int valuePosition = valuesPosition + nonZeroOffset * valueWidth;
+
+    Vector v = new SequentialAccessSparseVector(columns, nonZeros);
+    int column = 0;
+    for (int k = 0; k < nonZeros; k++) {
+      int delta = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = buffer.get(position++);
+        delta |= (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      column += delta;
+      double value = doublePrecision ? buffer.getDouble(valuePosition) : buffer.getFloat(valuePosition);
+      valuePosition += valueWidth;
+      v.setQuick(column, value);
+    }
+    return v;
+  }
+
+  private int find(int row) {
+    int low = 0;
+    int high = numRows - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int midRow = buffer.getInt(rowIdsPosition + 4 * mid);
+      if (midRow < row) {
+        low = mid + 1;
+      } else if (midRow > row) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+}
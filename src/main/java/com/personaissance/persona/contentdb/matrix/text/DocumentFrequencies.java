@@ -0,0 +1,112 @@
+package com.personaissance.persona.contentdb.matrix.text;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@author} gcapan
+ * Document frequencies of the columns of a text field, cached on the client and refreshed periodically from a
+ * {@link Source}. A reader that finds the table stale schedules a refresh on a background thread, and keeps using
+ * the previous table, like concurrent readers do until the refresh completes; if the refresh fails, the previous
+ * table is kept until the next interval.
+ */
+public class DocumentFrequencies {
+
+  private static final ExecutorService REFRESHER = Executors.newSingleThreadExecutor(
+     new ThreadFactoryBuilder().setDaemon(true).setNameFormat("document-frequencies-%d").build());
+
+  /**
+   * Loads current document frequencies of terms, e.g. from Luke
+   */
+  public interface Source {
+    Map<String, Integer> load() throws Exception;
+  }
+
+  private final Map<String, Integer> columnLabelBindings;
+  private final Source source;
+  private final ReentrantLock refreshLock = new ReentrantLock();
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+  private volatile int[] frequencies;
+  private volatile long refreshedAt;
+  private volatile long refreshIntervalNanos = -1;
+
+  /**
+   * @param columnLabelBindings column of each term
+   * @param frequencies initial document frequencies, by column; may be longer than the bindings, for columns that
+   * are bound later
+   * @param source source of refreshed frequencies
+   */
+  public DocumentFrequencies(Map<String, Integer> columnLabelBindings, int[] frequencies, Source source) {
+    Preconditions.checkArgument(columnLabelBindings.size() <= frequencies.length,
+       "frequencies do not cover the columns");
+    this.columnLabelBindings = columnLabelBindings;
+    this.frequencies = frequencies;
+    this.source = source;
+    this.refreshedAt = System.nanoTime();
+  }
+
+  public long getRefreshInterval(TimeUnit unit) {
+    return unit.convert(refreshIntervalNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param interval interval between refreshes; a negative interval disables them
+   * @param unit unit of the interval
+   */
+  public void setRefreshInterval(long interval, TimeUnit unit) {
+    this.refreshIntervalNanos = interval < 0 ? -1 : unit.toNanos(interval);
+  }
+
+  /**
+   * @return document frequencies by column, without waiting for a refresh scheduled if stale; must not be modified
+   */
+  public int[] get() {
+    long interval = refreshIntervalNanos;
+    if (interval >= 0 && System.nanoTime() - refreshedAt >= interval && refreshing.compareAndSet(false, true)) {
+      REFRESHER.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            refresh();
+          } catch (Exception e) {
+            //keep the previous frequencies until the next interval
+            refreshedAt = System.nanoTime();
+          } finally {
+            refreshing.set(false);
+          }
+        }
+      });
+    }
+    return frequencies;
+  }
+
+  /**
+   * Reloads the frequencies from the source, on the calling thread; terms absent in the source keep their previous
+   * frequencies
+   * @throws Exception if the source fails
+   */
+  public void refresh() throws Exception {
+    refreshLock.lock();
+    try {
+      Map<String, Integer> loaded = source.load();
+      int[] frequencies = this.frequencies.clone();
+      for (Map.Entry<String, Integer> entry : loaded.entrySet()) {
+        Integer column = columnLabelBindings.get(entry.getKey());
+        if (column != null) {
+          frequencies[column] = entry.getValue();
+        }
+      }
+      this.frequencies = frequencies;
+      refreshedAt = System.nanoTime();
+    } finally {
+      refreshLock.unlock();
+    }
+  }
+}
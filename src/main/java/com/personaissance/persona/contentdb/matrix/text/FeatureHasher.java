@@ -0,0 +1,63 @@
+package com.personaissance.persona.contentdb.matrix.text;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * {@author} gcapan
+ * Maps terms to a column space of 2^bits columns with a signed murmur3 hash: the low bits of the hash select the
+ * column, and its sign bit the sign of the value, so that collisions cancel out in expectation. Columns depend only
+ * on the term, the number of bits and the seed, so they are stable across restarts and nodes.
+ */
+public class FeatureHasher {
+
+  public static final int DEFAULT_SEED = 0;
+
+  private final HashFunction hashFunction;
+  private final int bits;
+  private final int mask;
+
+  public FeatureHasher(int bits) {
+    this(bits, DEFAULT_SEED);
+  }
+
+  /**
+   * @param bits number of bits of a column; at most 30, so that the sign bit is independent of the column
+   * @param seed seed of the hash
+   */
+  public FeatureHasher(int bits, int seed) {
+    Preconditions.checkArgument(bits > 0 && bits <= 30, "bits must be in [1, 30]");
+    this.hashFunction = Hashing.murmur3_32(seed);
+    this.bits = bits;
+    this.mask = (1 << bits) - 1;
+  }
+
+  public int getBits() {
+    return bits;
+  }
+
+  /**
+   * @return number of columns
+   */
+  public int columns() {
+    return mask + 1;
+  }
+
+  /**
+   * @param term a term
+   * @return hash of the term, to be passed to {@link #column(int)} and {@link #sign(int)}
+   */
+  public int hash(String term) {
+    return hashFunction.hashString(term, Charsets.UTF_8).asInt();
+  }
+
+  public int column(int hash) {
+    return hash & mask;
+  }
+
+  public double sign(int hash) {
+    return hash < 0 ? -1 : 1;
+  }
+}
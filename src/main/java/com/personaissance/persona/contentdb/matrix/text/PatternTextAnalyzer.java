@@ -0,0 +1,48 @@
+package com.personaissance.persona.contentdb.matrix.text;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * {@author} gcapan
+ * A {@link TextAnalyzer} that splits text on a separator pattern, and optionally lowercases the terms.
+ * {@link #DEFAULT} splits on anything but letters and digits without lowercasing, which approximates Solr's
+ * StandardTokenizer alone.
+ */
+public class PatternTextAnalyzer implements TextAnalyzer {
+
+  public static final PatternTextAnalyzer DEFAULT = new PatternTextAnalyzer(Pattern.compile("[^\\p{L}\\p{N}]+"), false);
+
+  private final Pattern separator;
+  private final boolean lowercase;
+  private final Locale locale;
+
+  public PatternTextAnalyzer(Pattern separator, boolean lowercase) {
+    this(separator, lowercase, Locale.ROOT);
+  }
+
+  /**
+   * @param separator pattern of the text between terms
+   * @param lowercase whether terms are lowercased
+   * @param locale locale terms are lowercased in, e.g. Turkish for dotted and dotless i
+   */
+  public PatternTextAnalyzer(Pattern separator, boolean lowercase, Locale locale) {
+    this.separator = separator;
+    this.lowercase = lowercase;
+    this.locale = locale;
+  }
+
+  @Override
+  public List<String> analyze(String text) {
+    List<String> terms = Lists.newArrayList();
+    for (String term : separator.split(text)) {
+      if (!term.isEmpty()) {
+        terms.add(lowercase ? term.toLowerCase(locale) : term);
+      }
+    }
+    return terms;
+  }
+}
@@ -0,0 +1,17 @@
+package com.personaissance.persona.contentdb.matrix.text;
+
+import java.util.List;
+
+/**
+ * {@author} gcapan
+ * Splits the value of a text field into terms on the client side. Should mirror the analyzer of the field in the
+ * Solr schema, so that locally vectorized rows match the rows built from Solr's term vectors.
+ */
+public interface TextAnalyzer {
+
+  /**
+   * @param text the field value
+   * @return terms of the text in order, repeated as many times as they occur
+   */
+  List<String> analyze(String text);
+}
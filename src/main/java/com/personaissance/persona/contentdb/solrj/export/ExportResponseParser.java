@@ -0,0 +1,119 @@
+package com.personaissance.persona.contentdb.solrj.export;
+
+import org.apache.solr.client.solrj.ResponseParser;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.noggit.JSONParser;
+import org.noggit.ObjectBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@author} gcapan
+ * Parses the JSON stream of the /export handler, which reads the sorted docValues of all matching documents in one
+ * request. Documents are handed to a {@link Callback} one by one while the response is read, rather than collected
+ * into a document list. The returned response only carries numFound.
+ */
+public class ExportResponseParser extends ResponseParser {
+
+  public interface Callback {
+    /**
+     * @param document a document of the response, with multivalued fields as lists
+     */
+    void document(SolrDocument document);
+  }
+
+  private final Callback callback;
+
+  public ExportResponseParser(Callback callback) {
+    this.callback = callback;
+  }
+
+  @Override
+  public String getWriterType() {
+    return "json";
+  }
+
+  @Override
+  public NamedList<Object> processResponse(InputStream body, String encoding) {
+    try {
+      return processResponse(new InputStreamReader(body, encoding == null ? "UTF-8" : encoding));
+    } catch (UnsupportedEncodingException e) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
+    }
+  }
+
+  @Override
+  public NamedList<Object> processResponse(Reader reader) {
+    NamedList<Object> response = new NamedList<Object>();
+    try {
+      JSONParser parser = new JSONParser(reader);
+      expect(parser, JSONParser.OBJECT_START);
+      for (int event = parser.nextEvent(); event != JSONParser.OBJECT_END; event = parser.nextEvent()) {
+        String key = parser.getString();
+        if ("response".equals(key)) {
+          expect(parser, JSONParser.OBJECT_START);
+          parseResults(parser, response);
+        } else if ("error".equals(key)) {
+          parser.nextEvent();
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+             "export failed: " + ObjectBuilder.getVal(parser));
+        } else {
+          parser.nextEvent();
+          ObjectBuilder.getVal(parser);
+        }
+      }
+    } catch (IOException e) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
+    }
+    return response;
+  }
+
+  private void parseResults(JSONParser parser, NamedList<Object> response) throws IOException {
+    for (int event = parser.nextEvent(); event != JSONParser.OBJECT_END; event = parser.nextEvent()) {
+      String key = parser.getString();
+      if ("docs".equals(key)) {
+        expect(parser, JSONParser.ARRAY_START);
+        for (int doc = parser.nextEvent(); doc != JSONParser.ARRAY_END; doc = parser.nextEvent()) {
+          callback.document(toDocument((Map<?, ?>) ObjectBuilder.getVal(parser)));
+        }
+      } else {
+        parser.nextEvent();
+        Object value = ObjectBuilder.getVal(parser);
+        if ("numFound".equals(key)) {
+          response.add("numFound", value);
+        }
+      }
+    }
+  }
+
+  private static SolrDocument toDocument(Map<?, ?> fields) {
+    SolrDocument document = new SolrDocument();
+    for (Map.Entry<?, ?> field : fields.entrySet()) {
+      Object value = field.getValue();
+      if (value instanceof List) {
+        for (Object v : (List<?>) value) {
+          document.addField(field.getKey().toString(), v);
+        }
+      } else {
+        document.setField(field.getKey().toString(), value);
+      }
+    }
+    return document;
+  }
+
+  private static void expect(JSONParser parser, int expected) throws IOException {
+    int event = parser.nextEvent();
+    if (event != expected) {
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "unexpected " +
+         JSONParser.getEventString(event) + " in export response, expected " + JSONParser.getEventString(expected));
+    }
+  }
+}
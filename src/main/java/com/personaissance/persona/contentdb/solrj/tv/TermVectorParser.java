@@ -0,0 +1,160 @@
+package com.personaissance.persona.contentdb.solrj.tv;
+
+import com.personaissance.persona.contentdb.matrix.text.FeatureHasher;
+import org.apache.solr.common.util.NamedList;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * {@author} gcapan
+ * Parses the termVectors section of a response of the TermVectorComponent, for all documents in a single pass.
+ * Terms are mapped to columns, and their weights written into primitive buffers that are reused across documents,
+ * so that no object is created per term. Numeric values are read as {@link Number}s.
+ * <p/>
+ * The weight of a term is its tf-idf if present in the response, otherwise its tf/df if both are present, otherwise
+ * its tf; a term with none of them weighs 1. With a {@link FeatureHasher}, terms are hashed to columns instead, their
+ * weights are signed, and the weights of colliding terms are summed.
+ */
+public class TermVectorParser {
+
+  /**
+   * Receives the terms of a document. The buffers are only valid during the call.
+   */
+  public interface Callback {
+    /**
+     * @param uniqueKey unique key of the document, as in the response
+     * @param columns columns of the terms, in increasing order
+     * @param weights weights of the terms
+     * @param size number of terms
+     */
+    void document(String uniqueKey, int[] columns, double[] weights, int size);
+  }
+
+  private final Map<String, Integer> columnLabelBindings;
+  private final FeatureHasher hasher;
+  private int[] columns = new int[16];
+  private double[] weights = new double[16];
+
+  /**
+   * @param columnLabelBindings columns of terms; terms not in the bindings are skipped
+   */
+  public TermVectorParser(Map<String, Integer> columnLabelBindings) {
+    this.columnLabelBindings = columnLabelBindings;
+    this.hasher = null;
+  }
+
+  /**
+   * @param hasher maps terms to columns
+   */
+  public TermVectorParser(FeatureHasher hasher) {
+    this.columnLabelBindings = null;
+    this.hasher = hasher;
+  }
+
+  /**
+   * @param response the response
+   * @param field the term vector field
+   * @param callback receives the terms of each document that has terms for the field
+   */
+  public void parse(NamedList<?> response, String field, Callback callback) {
+    NamedList<?> termVectors = (NamedList<?>) response.get("termVectors");
+    if (termVectors == null) {
+      return;
+    }
+    for (int i = 0; i < termVectors.size(); i++) {
+      Object document = termVectors.getVal(i);
+      String key = termVectors.getName(i);
+      //skips uniqueKeyFieldName and warnings
+      if (!(document instanceof NamedList) || "warnings".equals(key)) {
+        continue;
+      }
+      NamedList<?> terms = (NamedList<?>) ((NamedList<?>) document).get(field);
+      if (terms == null) {
+        continue;
+      }
+      int size = parseTerms(terms);
+      callback.document(key, columns, weights, size);
+    }
+  }
+
+  private int parseTerms(NamedList<?> terms) {
+    int size = 0;
+    for (int i = 0; i < terms.size(); i++) {
+      int column;
+      double sign = 1;
+      if (hasher == null) {
+        Integer bound = columnLabelBindings.get(terms.getName(i));
+        if (bound == null) {
+          continue;
+        }
+        column = bound;
+      } else {
+        int hash = hasher.hash(terms.getName(i));
+        column = hasher.column(hash);
+        sign = hasher.sign(hash);
+      }
+      if (size == columns.length) {
+        columns = Arrays.copyOf(columns, size * 2);
+        weights = Arrays.copyOf(weights, size * 2);
+      }
+      columns[size] = column;
+      weights[size] = sign * weight((NamedList<?>) terms.getVal(i));
+      size++;
+    }
+    sort(size);
+    return hasher == null ? size : mergeCollisions(size);
+  }
+
+  /**
+   * Sums the weights of equal columns of the sorted buffers
+   * @return number of distinct columns
+   */
+  private int mergeCollisions(int size) {
+    if (size == 0) {
+      return 0;
+    }
+    int merged = 0;
+    for (int i = 1; i < size; i++) {
+      if (columns[i] == columns[merged]) {
+        weights[merged] += weights[i];
+      } else {
+        merged++;
+        columns[merged] = columns[i];
+        weights[merged] = weights[i];
+      }
+    }
+    return merged + 1;
+  }
+
+  private static double weight(NamedList<?> info) {
+    Number tfIdf = (Number) info.get("tf-idf");
+    if (tfIdf != null) {
+      return tfIdf.doubleValue();
+    }
+    Number tf = (Number) info.get("tf");
+    Number df = (Number) info.get("df");
+    if (tf != null && df != null) {
+      return tf.doubleValue() / df.doubleValue();
+    }
+    return tf == null ? 1 : tf.doubleValue();
+  }
+
+  /**
+   * Insertion sort of the buffers by column; terms of a document are few
+   */
+  private void sort(int size) {
+    for (int i = 1; i < size; i++) {
+      int column = columns[i];
+      double weight = weights[i];
+      int j = i - 1;
+      while (j >= 0 && columns[j] > column) {
+        columns[j + 1] = columns[j];
+        weights[j + 1] = weights[j];
+        j--;
+      }
+      columns[j + 1] = column;
+      weights[j + 1] = weight;
+    }
+  }
+}
@@ -21,7 +21,7 @@ public class TermVectorResponse {
   List<TermVectorInfo> termVectorInfoList = Lists.newArrayList();
 
   //assumes one tv.fl, creates a list of term entries, to each of which is attached the tf, df,
-  // and tf_idf values if available
+  // and tf_idf values if available; see TermVectorParser for the terms of all documents without per term objects
   public TermVectorResponse(SolrQuery query, QueryResponse solrResponse, String id) {
     NamedList namedList = solrResponse.getResponse();
     boolean tf = Boolean.parseBoolean(query.get(TermVectorParams.TF));
@@ -29,8 +29,13 @@ public class TermVectorResponse {
     boolean tf_idf = Boolean.parseBoolean(query.get(TermVectorParams.TF_IDF));
 
     NamedList termVectorsList = (NamedList) namedList.get("termVectors");
-    NamedList listForDoc = (NamedList) termVectorsList.get(id);
-    NamedList fieldTermsList = (NamedList) listForDoc.get(query.get(TermVectorParams.FIELDS));
+    NamedList listForDoc = termVectorsList == null ? null : (NamedList) termVectorsList.get(id);
+    NamedList fieldTermsList =
+       listForDoc == null ? null : (NamedList) listForDoc.get(query.get(TermVectorParams.FIELDS));
+    if (fieldTermsList == null) {
+      //the document has no terms for the field
+      return;
+    }
 
     Iterator<Map.Entry<String, Object>> tvInfoIterator = fieldTermsList.iterator();
     while (tvInfoIterator.hasNext()) {
@@ -39,13 +44,13 @@ public class TermVectorResponse {
       NamedList tv = (NamedList) tvInfo.getValue();
       TermVectorInfo termVectorInfo = new TermVectorInfo(word);
       if (tf) {
-        termVectorInfo.setTf(Integer.parseInt(tv.get("tf").toString()));
+        termVectorInfo.setTf(((Number) tv.get("tf")).intValue());
       }
       if (df) {
-        termVectorInfo.setDf(Integer.parseInt(tv.get("df").toString()));
+        termVectorInfo.setDf(((Number) tv.get("df")).intValue());
       }
       if (tf_idf) {
-        termVectorInfo.setTfIdf(Double.parseDouble(tv.get("tf-idf").toString()));
+        termVectorInfo.setTfIdf(((Number) tv.get("tf-idf")).doubleValue());
       }
       termVectorInfoList.add(termVectorInfo);
     }
@@ -0,0 +1,75 @@
+package com.personaissance.persona.contentdb;
+
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class CandidateSetTest {
+
+  private Set<Integer> expectedA;
+  private Set<Integer> expectedB;
+  private CandidateSet a;
+  private CandidateSet b;
+
+  @Before
+  public void createSets() {
+    Random random = new Random(11);
+    expectedA = Sets.newHashSet();
+    expectedB = Sets.newHashSet();
+    //a dense partition, that is kept as a bitmap, next to sparse ones
+    for (int i = 0; i < 30000; i++) {
+      expectedA.add(random.nextInt(1 << 16));
+      expectedB.add(random.nextInt(1 << 17));
+    }
+    for (int i = 0; i < 1000; i++) {
+      expectedA.add(random.nextInt(Integer.MAX_VALUE));
+      expectedB.add((1 << 20) + random.nextInt(1 << 16));
+    }
+    a = CandidateSet.of(Ints.toArray(expectedA));
+    b = CandidateSet.of(Ints.toArray(expectedB));
+  }
+
+  private static void assertSet(Set<Integer> expected, CandidateSet actual) {
+    assertEquals(expected.size(), actual.size());
+    List<Integer> sorted = Ints.asList(Ints.toArray(expected));
+    Collections.sort(sorted);
+    assertEquals(sorted, Ints.asList(actual.toArray()));
+  }
+
+  @Test
+  public void testAddAndContains() {
+    assertSet(expectedA, a);
+    assertFalse(a.add(expectedA.iterator().next()));
+    assertTrue(a.contains(expectedA.iterator().next()));
+    assertFalse(CandidateSet.of(1, 2, 3).contains(4));
+    assertTrue(new CandidateSet().isEmpty());
+  }
+
+  @Test
+  public void testSetOperations() {
+    assertSet(Sets.intersection(expectedA, expectedB), a.and(b));
+    assertSet(Sets.union(expectedA, expectedB), a.or(b));
+    assertSet(Sets.difference(expectedA, expectedB), a.andNot(b));
+    assertSet(Sets.difference(expectedB, expectedA), b.andNot(a));
+    assertTrue(a.and(new CandidateSet()).isEmpty());
+    assertSet(expectedA, a.or(new CandidateSet()));
+  }
+
+  @Test
+  public void testFastIDSet() {
+    FastIDSet ids = a.toFastIDSet();
+    assertEquals(expectedA.size(), ids.size());
+    assertEquals(a, CandidateSet.of(ids));
+  }
+}
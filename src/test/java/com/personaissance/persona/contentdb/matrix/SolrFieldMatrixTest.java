@@ -1,12 +1,38 @@
 package com.personaissance.persona.contentdb.matrix;
 
+import com.personaissance.persona.contentdb.AsyncContent;
+import com.personaissance.persona.contentdb.CandidateFilter;
+import com.personaissance.persona.contentdb.CandidateSet;
+import com.personaissance.persona.contentdb.NumericColumn;
 import com.personaissance.persona.contentdb.TYPE;
 import com.personaissance.persona.contentdb.exception.ContentException;
+import com.personaissance.persona.contentdb.matrix.cache.BoundedRowCache;
+import com.personaissance.persona.contentdb.matrix.cache.CandidateCache;
+import com.personaissance.persona.contentdb.matrix.cache.OffHeapRowCache;
+import com.personaissance.persona.contentdb.matrix.cache.RowCache;
+import com.personaissance.persona.contentdb.matrix.text.DocumentFrequencies;
+import com.personaissance.persona.contentdb.matrix.text.FeatureHasher;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.apache.commons.io.FileUtils;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.math.MatrixSlice;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.core.CoreContainer;
 import org.junit.After;
 import org.junit.Before;
@@ -14,10 +40,31 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
 public class SolrFieldMatrixTest {
@@ -155,6 +202,306 @@ public class SolrFieldMatrixTest {
 
   }
 
+  @Test
+  public void testViewRows() throws Exception {
+    SolrFieldMatrix matrix = new SolrFieldMatrix(solrServer, "id", "intField", TYPE.NUMERICAL, false);
+    matrix.setBatchSize(2);
+    Vector[] rows = matrix.viewRows(new int[]{3, 1, 2, 1, 99});
+    assertEquals(5, rows.length);
+    assertEquals(30, rows[0].get(0), 0);
+    assertEquals(10, rows[1].get(0), 0);
+    assertEquals(20, rows[2].get(0), 0);
+    assertEquals(10, rows[3].get(0), 0);
+    assertEquals(0, rows[4].getNumNondefaultElements());
+
+    SolrFieldMatrix matrix2 = new SolrFieldMatrix(solrServer, "id", "textField", TYPE.TEXT, false);
+    Vector[] textRows = matrix2.viewRows(new int[]{1, 2});
+    assertEquals(0.33, textRows[0].get(matrix2.getColumnLabelBindings().get("Sentence")), 0.01);
+    assertEquals(1, textRows[0].get(matrix2.getColumnLabelBindings().get("one")), 0.00);
+    assertEquals(1, textRows[1].get(matrix2.getColumnLabelBindings().get("two")), 0.00);
+    assertEquals(0, textRows[1].get(matrix2.getColumnLabelBindings().get("one")), 0.00);
+
+    SolrMatrix solrMatrix = new SolrMatrix(new SolrFieldMatrix[]{matrix2, matrix});
+    Vector[] superRows = solrMatrix.viewRows(new int[]{2, 3});
+    assertEquals(20, superRows[0].get(solrMatrix.getColumnLabelBindings().get("intField")), 0);
+    assertEquals(1, superRows[1].get(solrMatrix.getColumnLabelBindings().get("three")), 0);
+  }
+
+  @Test
+  public void testRowCache() throws Exception {
+    SolrFieldMatrix matrix = new SolrFieldMatrix(solrServer, "id", "intField", TYPE.NUMERICAL, false);
+    RowCache rowCache = BoundedRowCache.withMaximumRows(1);
+    matrix.setRowCache(rowCache);
+    assertEquals(10, matrix.get(1, 0), 0);
+    assertEquals(10, matrix.get(1, 0), 0);
+    assertEquals(20, matrix.get(2, 0), 0);
+    assertEquals(1, rowCache.size());
+    assertEquals(1, rowCache.hitCount());
+    assertEquals(2, rowCache.missCount());
+    assertEquals(1, rowCache.evictionCount());
+    rowCache.invalidate(2);
+    assertEquals(0, rowCache.size());
+  }
+
+  @Test
+  public void testParallelRowIteratorClose() throws Exception {
+    //partitions of endless rows, which block on the full queue
+    ParallelRowIterator.RangeIterable endless = new ParallelRowIterator.RangeIterable() {
+      @Override
+      public Iterator<MatrixSlice> iterateRows(int firstRow, int lastRow) {
+        if (firstRow > 0) {
+          throw new IllegalArgumentException("failed partition");
+        }
+        return Iterators.cycle(new MatrixSlice(new RandomAccessSparseVector(1), firstRow));
+      }
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    ParallelRowIterator rows = new ParallelRowIterator(endless, -1, -1, 2, executor, 1);
+    assertEquals(-1, rows.next().index());
+    rows.close();
+    assertFalse(rows.hasNext());
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+    //a failed partition stops the others, and is thrown before their rows are consumed
+    executor = Executors.newFixedThreadPool(2);
+    rows = new ParallelRowIterator(endless, -1, 2, 2, executor, 1);
+    try {
+      while (rows.hasNext()) {
+        rows.next();
+      }
+      assertTrue(false);
+    } catch (IllegalArgumentException e) {
+      //expected
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+    //a rejected partition stops the partitions started before it
+    executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>());
+    try {
+      new ParallelRowIterator(endless, -2, -1, 2, executor, 1);
+      assertTrue(false);
+    } catch (RejectedExecutionException e) {
+      //expected
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testBatchWindow() throws Exception {
+    RecordingSolrServer server = new RecordingSolrServer(solrServer);
+    final SolrFieldMatrix matrix = new SolrFieldMatrix(server, "id", "intField", TYPE.NUMERICAL, false);
+    matrix.setBatchWindow(500, TimeUnit.MILLISECONDS);
+    ExecutorService executor = Executors.newFixedThreadPool(6);
+    final CountDownLatch start = new CountDownLatch(1);
+    server.clear();
+    List<Future<Vector>> rows = Lists.newArrayList();
+    for (int i = 0; i < 6; i++) {
+      final int row = i % 3 + 1;
+      rows.add(executor.submit(new Callable<Vector>() {
+        @Override
+        public Vector call() {
+          Uninterruptibles.awaitUninterruptibly(start);
+          return matrix.viewRow(row);
+        }
+      }));
+    }
+    start.countDown();
+    for (int i = 0; i < 6; i++) {
+      assertEquals(10 * (i % 3 + 1), rows.get(i).get().get(0), 0);
+    }
+    executor.shutdown();
+    //all misses of the window, and the repeated rows, are fetched with a single batch query
+    assertEquals(1, server.requests());
+    assertEquals(3, matrix.getRowCache().size());
+  }
+
+  @Test
+  public void testFailedLoad() throws Exception {
+    SolrServer server = new RecordingSolrServer(solrServer) {
+      @Override
+      public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+        throw new SolrServerException("unavailable");
+      }
+    };
+    final SolrFieldMatrix matrix = new SolrFieldMatrix(server, "id", "intField", TYPE.NUMERICAL, false);
+    matrix.setBatchWindow(200, TimeUnit.MILLISECONDS);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Future<Vector>> rows = Lists.newArrayList();
+    for (int i = 0; i < 2; i++) {
+      final int row = i + 1;
+      rows.add(executor.submit(new Callable<Vector>() {
+        @Override
+        public Vector call() {
+          Uninterruptibles.awaitUninterruptibly(start);
+          return matrix.viewRow(row);
+        }
+      }));
+    }
+    start.countDown();
+    //the failure reaches every thread of the batch, rather than a null row
+    for (Future<Vector> row : rows) {
+      try {
+        row.get();
+        assertTrue(false);
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        assertTrue(e.getCause().getCause() instanceof SolrServerException);
+      }
+    }
+    executor.shutdown();
+  }
+
+  @Test
+  public void testViewColumn() throws Exception {
+    SolrFieldMatrix matrix = new SolrFieldMatrix(solrServer, "id", "intField", TYPE.NUMERICAL, false);
+    Vector column = matrix.viewColumn(0);
+    assertEquals(3, column.getNumNondefaultElements());
+    assertEquals(20, column.get(2), 0);
+
+    SolrFieldMatrix matrix2 = new SolrFieldMatrix(solrServer, "id", "multiNaryStringField", TYPE.MULTINOMIAL, true);
+    Vector column2 = matrix2.viewColumn(matrix2.getColumnLabelBindings().get("cat1"));
+    assertEquals(2, column2.getNumNondefaultElements());
+    assertEquals(1, column2.get(1), 0);
+    assertEquals(1, column2.get(3), 0);
+
+    SolrFieldMatrix matrix3 = new SolrFieldMatrix(solrServer, "id", "textField", TYPE.TEXT, false);
+    Vector column3 = matrix3.viewColumn(matrix3.getColumnLabelBindings().get("Sentence"));
+    assertEquals(3, column3.getNumNondefaultElements());
+    assertEquals(0.33, column3.get(2), 0.01);
+
+    //columns are paged by the batch size, the last page being empty
+    RecordingSolrServer server = new RecordingSolrServer(solrServer);
+    SolrFieldMatrix paged = new SolrFieldMatrix(server, "id", "textField", TYPE.TEXT, false);
+    paged.setBatchSize(1);
+    server.clear();
+    assertEquals(0, paged.viewColumn(paged.getColumnLabelBindings().get("Sentence")).minus(column3).norm(1), 1e-9);
+    assertEquals(4, server.requests());
+  }
+
+  @Test
+  public void testIterateRows() throws Exception {
+    SolrFieldMatrix matrix = new SolrFieldMatrix(solrServer, "id", "intField", TYPE.NUMERICAL, false);
+    matrix.setBatchSize(2);
+    Iterator<MatrixSlice> rows = matrix.iterateRows();
+    for (int row = 1; row <= 3; row++) {
+      MatrixSlice slice = rows.next();
+      assertEquals(row, slice.index());
+      assertEquals(10 * row, slice.vector().get(0), 0);
+    }
+    assertFalse(rows.hasNext());
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    Iterator<MatrixSlice> parallelRows = matrix.iterateRows(2, executor);
+    double sum = 0;
+    while (parallelRows.hasNext()) {
+      sum += parallelRows.next().vector().get(0);
+    }
+    executor.shutdown();
+    assertEquals(60, sum, 0);
+
+    SolrFieldMatrix matrix2 = new SolrFieldMatrix(solrServer, "id", "textField", TYPE.TEXT, false);
+    SolrMatrix solrMatrix = new SolrMatrix(new SolrFieldMatrix[]{matrix2, matrix});
+    Iterator<MatrixSlice> superRows = solrMatrix.iterateRows();
+    MatrixSlice first = superRows.next();
+    assertEquals(1, first.index());
+    assertEquals(1, first.vector().get(solrMatrix.getColumnLabelBindings().get("one")), 0);
+    assertEquals(10, first.vector().get(solrMatrix.getColumnLabelBindings().get("intField")), 0);
+    assertEquals(2, Iterators.size(superRows));
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    SolrFieldMatrix matrix = new SolrFieldMatrix(solrServer, "id", "textField", TYPE.TEXT, false);
+    matrix.viewRows(new int[]{1, 2, 3});
+    File file = File.createTempFile("textField", ".snapshot");
+    try {
+      matrix.writeSnapshot(file, false);
+
+      SolrFieldMatrix matrix2 = new SolrFieldMatrix(solrServer, "id", "textField", TYPE.TEXT, false);
+      matrix2.loadSnapshot(file);
+      assertEquals(3, matrix2.getSnapshot().numRows());
+      solrServer.deleteByQuery("*:*");
+      solrServer.commit();
+      assertEquals(0.33, matrix2.get(1, matrix2.getColumnLabelBindings().get("Sentence")), 0.01);
+      assertEquals(1, matrix2.get(2, matrix2.getColumnLabelBindings().get("two")), 0.00);
+      assertEquals(0, matrix2.get(2, matrix2.getColumnLabelBindings().get("three")), 0.00);
+      assertEquals(1, matrix2.get(3, matrix2.getColumnLabelBindings().get("three")), 0.00);
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testSnapshotWrites() throws Exception {
+    SolrFieldMatrix matrix = new SolrFieldMatrix(solrServer, "id", "intField", TYPE.NUMERICAL, false);
+    File file = File.createTempFile("intField", ".snapshot");
+    try {
+      matrix.writeSnapshot(file, false);
+      matrix.loadSnapshot(file);
+      assertEquals(10, matrix.get(1, 0), 0);
+
+      SolrInputDocument document = new SolrInputDocument();
+      document.addField("intField", 99);
+      matrix.assignRow(1, document);
+      solrServer.commit();
+      matrix.releaseWrites();
+      //a written row is not read from the snapshot once it is evicted
+      matrix.setRowCache(BoundedRowCache.withMaximumRows(0));
+      assertEquals(99, matrix.get(1, 0), 0);
+      assertEquals(20, matrix.get(2, 0), 0);
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testOffHeapRowCache() throws Exception {
+    SolrFieldMatrix matrix = new SolrFieldMatrix(solrServer, "id", "textField", TYPE.TEXT, false);
+    //each row takes 4 + 12 * 2 bytes, so a segment fits two rows
+    RowCache rowCache = new OffHeapRowCache(matrix.columnSize(), 56, 1);
+    matrix.setRowCache(rowCache);
+    assertEquals(1, matrix.get(1, matrix.getColumnLabelBindings().get("one")), 0.00);
+    assertEquals(1, matrix.get(2, matrix.getColumnLabelBindings().get("two")), 0.00);
+    assertEquals(0.33, matrix.get(2, matrix.getColumnLabelBindings().get("Sentence")), 0.01);
+    assertEquals(0, matrix.get(2, matrix.getColumnLabelBindings().get("one")), 0.00);
+    assertEquals(2, rowCache.size());
+    assertEquals(1, matrix.get(3, matrix.getColumnLabelBindings().get("three")), 0.00);
+    assertEquals(1, rowCache.size());
+    assertEquals(2, rowCache.evictionCount());
+    assertEquals(2, matrix.viewRow(3).getNumNondefaultElements());
+  }
+
+  @Test
+  public void testOffHeapRowCacheRecycle() throws Exception {
+    File directory = Files.createTempDir();
+    try {
+      //each row takes 4 + 12 * 2 bytes, so a segment fits two rows
+      RowCache rowCache = new OffHeapRowCache(10, 56, 1, directory);
+      Vector row = new RandomAccessSparseVector(10);
+      row.setQuick(1, 1);
+      row.setQuick(2, 2);
+      rowCache.put(1, row);
+      Vector view = rowCache.get(1);
+      Vector other = new RandomAccessSparseVector(10);
+      other.setQuick(1, 10);
+      other.setQuick(5, 50);
+      for (int i = 2; i <= 4; i++) {
+        rowCache.put(i, other);
+      }
+      assertEquals(null, rowCache.get(1));
+      assertEquals(1, view.get(1), 0);
+      assertEquals(2, view.get(2), 0);
+      assertEquals(0, view.get(5), 0);
+      assertEquals(1, directory.list().length);
+    } finally {
+      FileUtils.deleteQuietly(directory);
+    }
+  }
+
 //  @Test
   public void testMostSimilars() throws  Exception {
     SolrFieldMatrix matrix = new SolrFieldMatrix(solrServer, "id", "textField", TYPE.TEXT, false);
@@ -168,6 +515,11 @@ public class SolrFieldMatrixTest {
     assertTrue(candidates.size() == 1);
     assertTrue(candidates.contains(1));
 
+    matrix1.setDocValuesIds(true);
+    candidates = matrix1.getCandidates("Sentence", 3);
+    assertEquals(3, candidates.size());
+    assertTrue(candidates.contains(1) && candidates.contains(2) && candidates.contains(3));
+    assertEquals(2, matrix1.getCandidates("Sentence", 1, 5).size());
   }
 
   @Test
@@ -189,11 +541,701 @@ public class SolrFieldMatrixTest {
 
   }
 
+  @Test
+  public void testFanOut() throws Exception {
+    SolrFieldMatrix matrix1 = new SolrFieldMatrix(solrServer, "id", "textField", TYPE.TEXT, false);
+    SolrFieldMatrix matrix2 = new SolrFieldMatrix(solrServer, "id", "boolField", TYPE.BOOLEAN, false);
+    SolrFieldMatrix matrix3 = new SolrFieldMatrix(solrServer, "id", "intField", TYPE.NUMERICAL, false);
+    SolrMatrix serial = new SolrMatrix(new SolrFieldMatrix[]{
+       new SolrFieldMatrix(solrServer, "id", "textField", TYPE.TEXT, false),
+       new SolrFieldMatrix(solrServer, "id", "boolField", TYPE.BOOLEAN, false),
+       new SolrFieldMatrix(solrServer, "id", "intField", TYPE.NUMERICAL, false)});
+
+    SolrMatrix matrix = new SolrMatrix(new SolrFieldMatrix[]{matrix1, matrix2, matrix3});
+    ExecutorService executor = SuperMatrix.newFanOutExecutor();
+    matrix.setExecutor(executor);
+    try {
+      for (int row = 1; row <= 3; row++) {
+        assertEquals(0, serial.viewRow(row).getDistanceSquared(matrix.viewRow(row)), 0.00);
+      }
+      Vector[] rows = matrix.viewRows(new int[]{3, 1, 2});
+      assertEquals(0, serial.viewRow(3).getDistanceSquared(rows[0]), 0.00);
+      assertEquals(0, serial.viewRow(2).getDistanceSquared(rows[2]), 0.00);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testSharedRows() throws Exception {
+    RecordingSolrServer server = new RecordingSolrServer(solrServer);
+    SolrMatrix matrix = new SolrMatrix(new SolrFieldMatrix[]{
+       new SolrFieldMatrix(server, "id", "textField", TYPE.TEXT, false),
+       new SolrFieldMatrix(server, "id", "boolField", TYPE.BOOLEAN, false),
+       new SolrFieldMatrix(server, "id", "intField", TYPE.NUMERICAL, false),
+       new SolrFieldMatrix(server, "id", "multiNaryStringField", TYPE.MULTINOMIAL, true)});
+    SolrMatrix separate = new SolrMatrix(new SolrFieldMatrix[]{
+       new SolrFieldMatrix(solrServer, "id", "textField", TYPE.TEXT, false),
+       new SolrFieldMatrix(solrServer, "id", "boolField", TYPE.BOOLEAN, false),
+       new SolrFieldMatrix(solrServer, "id", "intField", TYPE.NUMERICAL, false),
+       new SolrFieldMatrix(new RecordingSolrServer(solrServer), "id", "multiNaryStringField", TYPE.MULTINOMIAL, true)});
+
+    //one query for the term vectors, and one for all stored fields
+    server.clear();
+    Vector row = matrix.viewRow(1);
+    assertEquals(2, server.requests());
+    assertEquals(0, separate.viewRow(1).getDistanceSquared(row), 0.00);
+    matrix.viewRow(1);
+    assertEquals(2, server.requests());
+
+    Vector[] rows = matrix.viewRows(new int[]{3, 2, 3});
+    assertEquals(4, server.requests());
+    assertEquals(0, separate.viewRow(3).getDistanceSquared(rows[2]), 0.00);
+    assertEquals(0, separate.viewRow(2).getDistanceSquared(rows[1]), 0.00);
+  }
+
+  @Test
+  public void testSharedBatchWindow() throws Exception {
+    RecordingSolrServer server = new RecordingSolrServer(solrServer);
+    SolrFieldMatrix first = new SolrFieldMatrix(server, "id", "intField", TYPE.NUMERICAL, false);
+    first.setBatchWindow(500, TimeUnit.MILLISECONDS);
+    final SolrMatrix matrix = new SolrMatrix(new SolrFieldMatrix[]{
+       first, new SolrFieldMatrix(server, "id", "boolField", TYPE.BOOLEAN, false)});
+    ExecutorService executor = Executors.newFixedThreadPool(6);
+    final CountDownLatch start = new CountDownLatch(1);
+    server.clear();
+    List<Future<Vector>> rows = Lists.newArrayList();
+    for (int i = 0; i < 6; i++) {
+      final int row = i % 3 + 1;
+      rows.add(executor.submit(new Callable<Vector>() {
+        @Override
+        public Vector call() {
+          Uninterruptibles.awaitUninterruptibly(start);
+          return matrix.viewRow(row);
+        }
+      }));
+    }
+    start.countDown();
+    for (int i = 0; i < 6; i++) {
+      assertEquals(10 * (i % 3 + 1), rows.get(i).get().get(0), 0);
+    }
+    executor.shutdown();
+    //the group fetches all misses of the window, and the repeated rows, with a single query
+    assertEquals(1, server.requests());
+  }
+
+  @Test
+  public void testAsyncContent() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    SolrServer server = new RecordingSolrServer(solrServer) {
+      @Override
+      protected void beforeRequest(SolrRequest request) {
+        //candidate queries on the text field block until released
+        if (request.getParams() != null && "slow".equals(request.getParams().get(CommonParams.Q))) {
+          Uninterruptibles.awaitUninterruptibly(release);
+        }
+      }
+    };
+    SolrMatrix matrix = new SolrMatrix(new SolrFieldMatrix[]{
+       new SolrFieldMatrix(server, "id", "textField", TYPE.TEXT, false),
+       new SolrFieldMatrix(server, "id", "intField", TYPE.NUMERICAL, false)});
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      AsyncContent content = new AsyncContent(matrix, executor);
+      CompletableFuture<FastIDSet> candidates = content.getCandidates("textField", "one", 3);
+      CompletableFuture<Vector> row = content.viewRow(2);
+      assertTrue(candidates.get().contains(1));
+      assertEquals(20, row.get().get(matrix.getColumnLabelBindings().get("intField")), 0);
+      assertEquals(2, content.viewRows(new int[]{1, 3}).get().length);
+
+      content.setTimeout(100, TimeUnit.MILLISECONDS);
+      try {
+        content.getCandidates("textField", new SolrQuery("slow"), 3).get();
+        assertTrue(false);
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof TimeoutException);
+      }
+      content.setTimeout(0, TimeUnit.MILLISECONDS);
+      CompletableFuture<FastIDSet> cancelled = content.getCandidates("textField", new SolrQuery("slow"), 3);
+      assertTrue(cancelled.cancel(true));
+      assertTrue(cancelled.isCancelled());
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testCandidateCache() throws Exception {
+    RecordingSolrServer server = new RecordingSolrServer(solrServer);
+    SolrMatrix matrix = new SolrMatrix(new SolrFieldMatrix[]{
+       new SolrFieldMatrix(server, "id", "textField", TYPE.TEXT, false),
+       new SolrFieldMatrix(server, "id", "naryStringField", TYPE.MULTINOMIAL, false)});
+    CandidateCache cache = CandidateCache.withMaximumSets(100, 1, TimeUnit.HOURS);
+    matrix.setCandidateCache(cache);
+
+    server.clear();
+    FastIDSet candidates = matrix.getCandidates("naryStringField", "cat3", 10);
+    assertTrue(candidates == matrix.getCandidates("naryStringField", "cat3", 10));
+    assertEquals(1, server.requests());
+    assertEquals(1, cache.hitCount());
+    assertEquals(1, matrix.getCandidates("naryStringField", "cat3", 10).size());
+    //same parameters, set in another order
+    SolrQuery query = new SolrQuery();
+    query.setRows(10).setStart(0).setQuery("naryStringField:cat3").setHighlight(false).setFacet(false);
+    assertTrue(candidates == matrix.getCandidates("naryStringField", query, 10));
+    assertEquals(1, server.requests());
+
+    SolrInputDocument document = new SolrInputDocument();
+    document.addField("naryStringField", "cat3");
+    matrix.setContent(9, document);
+    //not searchable yet; a set cached before the commit must not outlive it
+    assertEquals(1, matrix.getCandidates("naryStringField", "cat3", 10).size());
+    matrix.commit();
+    server.clear();
+    assertEquals(2, matrix.getCandidates("naryStringField", "cat3", 10).size());
+    assertEquals(1, server.requests());
+
+    //a write that bypasses the matrix is seen through the index version
+    cache.setIndexVersionCheck(server, 1, TimeUnit.MILLISECONDS);
+    matrix.getCandidates("naryStringField", "cat3", 10);
+    document = new SolrInputDocument();
+    document.addField("id", 10);
+    document.addField("naryStringField", "cat3");
+    solrServer.add(document);
+    solrServer.commit();
+    Thread.sleep(5);
+    assertEquals(3, matrix.getCandidates("naryStringField", "cat3", 10).size());
+
+    //a set fetched across an invalidation is not kept
+    final CandidateCache invalidated = CandidateCache.withMaximumSets(100, 1, TimeUnit.HOURS);
+    invalidated.get("key", new Callable<FastIDSet>() {
+      @Override
+      public FastIDSet call() {
+        invalidated.invalidateAll();
+        return new FastIDSet();
+      }
+    });
+    assertEquals(0, invalidated.size());
+    invalidated.get("key", new Callable<FastIDSet>() {
+      @Override
+      public FastIDSet call() {
+        return new FastIDSet();
+      }
+    });
+    assertEquals(1, invalidated.size());
+  }
+
+  @Test
+  public void testCandidateFilters() throws Exception {
+    SolrMatrix matrix = new SolrMatrix(new SolrFieldMatrix[]{
+       new SolrFieldMatrix(solrServer, "id", "textField", false, "loc", TYPE.TEXT),
+       new SolrFieldMatrix(solrServer, "id", "multiNaryStringField", TYPE.MULTINOMIAL, true)});
+
+    CandidateSet candidates = matrix.getCandidates(new CandidateFilter[]{
+       CandidateFilter.keyword("textField", "Sentence"), CandidateFilter.keyword("multiNaryStringField", "cat1")}, 10);
+    assertEquals(CandidateSet.of(1, 3), candidates);
+    //within 100km of Izmir
+    CandidateSet near = matrix.getCandidates(new CandidateFilter[]{
+       CandidateFilter.spatial("textField", "Sentence", 38.42, 27.14, 100)}, 10);
+    assertEquals(CandidateSet.of(1), near);
+    assertEquals(CandidateSet.of(3), candidates.andNot(near));
+    CandidateSet cat3 = matrix.getCandidates(new CandidateFilter[]{
+       CandidateFilter.keyword("multiNaryStringField", "cat3")}, 10);
+    assertEquals(CandidateSet.of(1, 2, 3), candidates.or(cat3));
+  }
+
+  @Test
+  public void testFilterCandidates() throws Exception {
+    RecordingSolrServer server = new RecordingSolrServer(solrServer);
+    SolrFieldMatrix category = new SolrFieldMatrix(server, "id", "naryStringField", false, "loc", TYPE.MULTINOMIAL);
+    SolrFieldMatrix bool = new SolrFieldMatrix(server, "id", "boolField", TYPE.BOOLEAN, false);
+    SolrFieldMatrix text = new SolrFieldMatrix(server, "id", "textField", TYPE.TEXT, false);
+    category.setFilterCandidates(true);
+    bool.setFilterCandidates(true);
+    text.setFilterCandidates(true);
+
+    server.clear();
+    assertEquals(new FastIDSet(new long[]{3}), category.getCandidates("cat3", 10));
+    assertEquals("*:*", server.params().get(0).get(CommonParams.Q));
+    assertEquals("naryStringField:cat3", server.params().get(0).get(CommonParams.FQ));
+    assertEquals("_docid_ asc", server.params().get(0).get(CommonParams.SORT));
+    assertEquals(new FastIDSet(new long[]{1, 3}), bool.getCandidates("true", 10));
+    assertEquals(new FastIDSet(new long[]{2}), text.getCandidates("two", 10));
+    assertEquals(new FastIDSet(new long[]{2, 3}), text.getCandidates("Sentence", 1, 10));
+    assertEquals(new FastIDSet(new long[]{1}), category.getCandidates("cat1", 38.42, 27.14, 100));
+
+    SolrMatrix matrix = new SolrMatrix(new SolrFieldMatrix[]{category,
+       new SolrFieldMatrix(server, "id", "intField", TYPE.NUMERICAL, false)});
+    assertEquals(CandidateSet.of(2, 3), matrix.getCandidates(new CandidateFilter[]{
+       CandidateFilter.range("intField", 15, Double.POSITIVE_INFINITY)}, 10));
+    assertEquals(CandidateSet.of(2), matrix.getCandidates(new CandidateFilter[]{
+       CandidateFilter.range("intField", 15, 25), CandidateFilter.keyword("naryStringField", "cat2")}, 10));
+  }
+
+  @Test
+  public void testNumericCandidates() throws Exception {
+    SolrFieldMatrix matrix = new SolrFieldMatrix(solrServer, "id", "intField", TYPE.NUMERICAL, false);
+    assertEquals(new FastIDSet(new long[]{2, 3}), matrix.getRangeCandidates(15, Double.POSITIVE_INFINITY, 10));
+    assertEquals(new FastIDSet(new long[]{1, 2}), matrix.getRangeCandidates(Double.NEGATIVE_INFINITY, 20, 10));
+    assertEquals(new FastIDSet(new long[]{3}), matrix.getTopCandidates(1, true));
+    assertEquals(new FastIDSet(new long[]{1, 2}), matrix.getTopCandidates(2, false));
+
+    NumericColumn column = matrix.loadNumericColumn();
+    assertEquals(4, column.length());
+    assertEquals(3, column.size());
+    assertTrue(Double.isNaN(column.get(0)));
+    assertEquals(10, column.get(1), 0);
+    assertEquals(30, column.get(3), 0);
+    matrix.setDocValuesIds(true);
+    assertTrue(Arrays.equals(column.toArray(), matrix.loadNumericColumn().toArray()));
+
+    SolrMatrix content = new SolrMatrix(new SolrFieldMatrix[]{matrix});
+    assertEquals(new FastIDSet(new long[]{2}), content.getRangeCandidates("intField", 15, 25, 10));
+    assertEquals(20, content.getNumericColumn("intField").get(2), 0);
+  }
+
+  @Test
+  public void testNumericColumnExport() throws Exception {
+    SolrServer server = new RecordingSolrServer(solrServer).respond("/export",
+       "{\"responseHeader\":{\"status\":0},\"response\":{\"numFound\":2,\"docs\":[" +
+       "{\"id\":2,\"intField\":20},{\"id\":5,\"intField\":50}]}}");
+    SolrFieldMatrix matrix = new SolrFieldMatrix(server, "id", "intField", TYPE.NUMERICAL, false);
+    matrix.setExportHandler("/export");
+    NumericColumn column = matrix.loadNumericColumn();
+    assertEquals(6, column.length());
+    assertTrue(column.isDense());
+    assertEquals(20, column.get(2), 0);
+    assertEquals(50, column.get(5), 0);
+    assertTrue(Double.isNaN(column.get(3)));
+  }
+
+  @Test
+  public void testStringIds() throws Exception {
+    //ids of a string typed id field arrive as strings
+    SolrServer server = new RecordingSolrServer(solrServer).respond("/export",
+       "{\"responseHeader\":{\"status\":0},\"response\":{\"numFound\":2,\"docs\":[" +
+       "{\"id\":\"1\",\"intField\":10},{\"id\":\"3\",\"intField\":30}]}}");
+    SolrFieldMatrix matrix = new SolrFieldMatrix(server, "id", "intField", TYPE.NUMERICAL, false);
+    matrix.setExportHandler("/export");
+    List<MatrixSlice> rows = Lists.newArrayList(matrix.iterateRows());
+    assertEquals(2, rows.size());
+    assertEquals(3, rows.get(1).index());
+    assertEquals(30, rows.get(1).vector().get(0), 0);
+    assertEquals(30, matrix.loadNumericColumn().get(3), 0);
+  }
+
+  @Test
+  public void testSparseNumericColumn() throws Exception {
+    RecordingSolrServer server = new RecordingSolrServer(solrServer).respond("/export",
+       "{\"responseHeader\":{\"status\":0},\"response\":{\"numFound\":2,\"docs\":[" +
+       "{\"id\":2,\"intField\":20},{\"id\":2000000000,\"intField\":50}]}}");
+    SolrFieldMatrix matrix = new SolrFieldMatrix(server, "id", "intField", TYPE.NUMERICAL, false);
+    matrix.setExportHandler("/export");
+    //a large id does not allocate a dense column
+    NumericColumn column = matrix.loadNumericColumn();
+    assertFalse(column.isDense());
+    assertEquals(2000000001, column.length());
+    assertEquals(2, column.size());
+    assertEquals(20, column.get(2), 0);
+    assertEquals(50, column.get(2000000000), 0);
+    assertTrue(Double.isNaN(column.get(3)));
+
+    for (String id : new String[]{"-1", "3000000000", "2147483647"}) {
+      server.respond("/export", "{\"responseHeader\":{\"status\":0},\"response\":{\"numFound\":1,\"docs\":[" +
+         "{\"id\":" + id + ",\"intField\":20}]}}");
+      try {
+        matrix.loadNumericColumn();
+        assertTrue(false);
+      } catch (ContentException e) {
+        //expected
+      }
+    }
+  }
+
+  @Test
+  public void testIngester() throws Exception {
+    SolrFieldMatrix matrix1 = new SolrFieldMatrix(solrServer, "id", "intField", TYPE.NUMERICAL, false);
+    SolrFieldMatrix matrix2 = new SolrFieldMatrix(solrServer, "id", "boolField", TYPE.BOOLEAN, false);
+    SolrMatrix matrix = new SolrMatrix(new SolrFieldMatrix[]{matrix1, matrix2});
+    assertEquals(10, matrix.get(1, 0), 0);
+
+    SolrIngester ingester = new SolrIngester(solrServer, "id", 16, 4, 1 << 20, 2);
+    matrix.setIngester(ingester);
+    for (int id = 1; id <= 40; id++) {
+      SolrInputDocument document = new SolrInputDocument();
+      document.addField("intField", id * 100);
+      document.addField("boolField", "true");
+      matrix.setContent(id, document);
+    }
+    ingester.close();
+
+    assertEquals(100, matrix.get(1, 0), 0);
+    assertEquals(4000, matrix.get(40, 0), 0);
+    assertEquals(1, matrix.get(40, 1), 0);
+  }
+
+  @Test
+  public void testWriteThrough() throws Exception {
+    SolrFieldMatrix matrix1 = new SolrFieldMatrix(solrServer, "id", "textField", TYPE.TEXT, false);
+    SolrFieldMatrix matrix2 = new SolrFieldMatrix(solrServer, "id", "intField", TYPE.NUMERICAL, false);
+    SolrFieldMatrix matrix3 = new SolrFieldMatrix(solrServer, "id", "multiNaryStringField", TYPE.MULTINOMIAL, true);
+    SolrMatrix matrix = new SolrMatrix(new SolrFieldMatrix[]{matrix1, matrix2, matrix3});
+
+    SolrInputDocument document = new SolrInputDocument();
+    document.addField("textField", "Sentence one, one.");
+    document.addField("intField", "50");
+    document.addField("multiNaryStringField", "cat1");
+    document.addField("multiNaryStringField", "cat3");
+    matrix.setContent(5, document);
+
+    //not committed, but visible
+    Vector row = matrix1.viewRow(5);
+    assertEquals(1 / 3.0, row.get(matrix1.getColumnLabelBindings().get("Sentence")), 1e-9);
+    assertEquals(2.0, row.get(matrix1.getColumnLabelBindings().get("one")), 1e-9);
+    assertEquals(50, matrix2.get(5, 0), 0);
+    assertEquals(1, matrix3.get(5, matrix3.getColumnLabelBindings().get("cat3")), 0);
+    assertEquals(0, matrix3.get(5, matrix3.getColumnLabelBindings().get("cat2")), 0);
+
+    matrix.commit();
+    assertEquals(50, matrix2.getRowCache().get(5).get(0), 0);
+    assertEquals(1, solrServer.query(new SolrQuery("id:5")).getResults().getNumFound());
+  }
+
+  @Test
+  public void testPinnedWrites() throws Exception {
+    final AtomicBoolean block = new AtomicBoolean(true);
+    final CountDownLatch fetching = new CountDownLatch(1);
+    final CountDownLatch written = new CountDownLatch(1);
+    RecordingSolrServer server = new RecordingSolrServer(solrServer) {
+      @Override
+      protected void beforeRequest(SolrRequest request) {
+        //the first fetch reads the document before the write, and returns after it
+        if (block.compareAndSet(true, false)) {
+          fetching.countDown();
+          Uninterruptibles.awaitUninterruptibly(written);
+        }
+      }
+    };
+    final SolrFieldMatrix matrix = new SolrFieldMatrix(server, "id", "intField", TYPE.NUMERICAL, false);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<Vector> fetched = executor.submit(new Callable<Vector>() {
+      @Override
+      public Vector call() {
+        return matrix.viewRow(1);
+      }
+    });
+    fetching.await();
+    SolrInputDocument document = new SolrInputDocument();
+    document.addField("intField", 99);
+    matrix.assignRow(1, document);
+    written.countDown();
+    assertEquals(99, fetched.get().get(0), 0);
+    executor.shutdown();
+    assertEquals(99, matrix.get(1, 0), 0);
+
+    //an evicted row is not fetched before it is released
+    matrix.setRowCache(BoundedRowCache.withMaximumRows(0));
+    assertEquals(99, matrix.get(1, 0), 0);
+    matrix.setRowCache(BoundedRowCache.withMaximumRows(10));
+    solrServer.commit();
+    matrix.releaseWrites();
+    assertEquals(99, matrix.getRowCache().get(1).get(0), 0);
+
+    //a pin past its visibility delay is released into the row cache by the next read, rather than dropped
+    document = new SolrInputDocument();
+    document.addField("intField", 77);
+    matrix.assignRow(2, document);
+    matrix.setWriteVisibility(1, TimeUnit.MILLISECONDS);
+    Thread.sleep(10);
+    assertEquals(77, matrix.viewRow(2).get(0), 0);
+    assertEquals(77, matrix.getRowCache().get(2).get(0), 0);
+  }
+
+  @Test
+  public void testLocalTermVectors() throws Exception {
+    SolrFieldMatrix remote = new SolrFieldMatrix(solrServer, "id", "textField", TYPE.TEXT, false);
+    SolrFieldMatrix local = new SolrFieldMatrix(solrServer, "id", "textField", TYPE.TEXT, false);
+    local.setLocalTermVectors(true);
+    Vector[] localRows = local.viewRows(new int[]{1, 2, 3});
+    for (int row = 1; row <= 3; row++) {
+      assertEquals(0, remote.viewRow(row).minus(localRows[row - 1]).norm(1), 1e-9);
+    }
+    int column = local.getColumnLabelBindings().get("Sentence");
+    assertEquals(0, remote.viewColumn(column).minus(local.viewColumn(column)).norm(1), 1e-9);
+
+    SolrInputDocument document = new SolrInputDocument();
+    document.addField("id", "6");
+    document.addField("textField", "Sentence six.");
+    solrServer.add(document);
+    solrServer.commit();
+    local.getDocumentFrequencies().refresh();
+    assertEquals(4, local.getDocumentFrequencies().get()[column]);
+  }
+
+  @Test
+  public void testBackgroundRefresh() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    DocumentFrequencies frequencies = new DocumentFrequencies(ImmutableMap.of("term", 0), new int[]{1},
+       new DocumentFrequencies.Source() {
+         @Override
+         public Map<String, Integer> load() throws Exception {
+           release.await();
+           return ImmutableMap.of("term", 2);
+         }
+       });
+    frequencies.setRefreshInterval(0, TimeUnit.SECONDS);
+    //readers keep the previous frequencies while the refresh is blocked
+    assertEquals(1, frequencies.get()[0]);
+    assertEquals(1, frequencies.get()[0]);
+    release.countDown();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (frequencies.get()[0] != 2 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, frequencies.get()[0]);
+  }
+
+  @Test
+  public void testVocabularyOptions() throws Exception {
+    SolrFieldMatrix matrix1 = new SolrFieldMatrix(solrServer, "id", "textField", false, null, TYPE.TEXT,
+       new VocabularyOptions().setMinDocumentFrequency(2));
+    assertEquals(1, matrix1.columnSize());
+    SolrFieldMatrix matrix2 = new SolrFieldMatrix(solrServer, "id", "textField", false, null, TYPE.TEXT,
+       new VocabularyOptions().setMaxDocumentFrequencyRatio(0.5).setPageSize(2));
+    assertEquals(3, matrix2.columnSize());
+    assertFalse(matrix2.getColumnLabelBindings().containsKey("Sentence"));
+    SolrFieldMatrix matrix3 = new SolrFieldMatrix(solrServer, "id", "textField", false, null, TYPE.TEXT,
+       new VocabularyOptions().setMaxSize(2));
+    assertEquals(2, matrix3.columnSize());
+    assertEquals(0, (int) matrix3.getColumnLabelBindings().get("Sentence"));
+  }
+
+  @Test
+  public void testGrowableVocabulary() throws Exception {
+    SolrFieldMatrix matrix = new SolrFieldMatrix(solrServer, "id", "textField", false, null, TYPE.TEXT,
+       new VocabularyOptions().setMaxSize(4).setCapacity(10));
+    assertEquals(10, matrix.columnSize());
+    assertEquals(4, matrix.getVocabularySize());
+    Vector row1 = matrix.viewRow(1);
+
+    SolrInputDocument document = new SolrInputDocument();
+    document.addField("id", "7");
+    document.addField("textField", "Sentence seven.");
+    solrServer.add(document);
+    solrServer.commit();
+    matrix.refreshVocabulary();
+
+    assertEquals(10, matrix.columnSize());
+    assertEquals(5, matrix.getVocabularySize());
+    assertEquals(4, (int) matrix.getColumnLabelBindings().get("seven"));
+    assertTrue(row1 == matrix.viewRow(1));
+    assertEquals(1.0, matrix.get(7, 4), 1e-9);
+    assertEquals(1.0, matrix.viewColumn(4).get(7), 1e-9);
+  }
+
+  @Test
+  public void testHashedColumns() throws Exception {
+    VocabularyOptions options = new VocabularyOptions().setHashBits(10);
+    SolrFieldMatrix remote = new SolrFieldMatrix(solrServer, "id", "textField", false, null, TYPE.TEXT, options);
+    SolrFieldMatrix local = new SolrFieldMatrix(solrServer, "id", "textField", false, null, TYPE.TEXT, options);
+    local.setLocalTermVectors(true);
+    assertEquals(1024, remote.columnSize());
+    assertTrue(remote.getColumnLabelBindings().isEmpty());
+
+    FeatureHasher hasher = remote.getHasher();
+    int hash = hasher.hash("one");
+    assertEquals(hasher.sign(hash), remote.get(1, hasher.column(hash)), 1e-9);
+    assertEquals(2, remote.viewRow(1).getNumNondefaultElements());
+    for (int row = 1; row <= 3; row++) {
+      assertEquals(0, remote.viewRow(row).minus(local.viewRow(row)).norm(1), 1e-9);
+    }
+
+    SolrFieldMatrix categories = new SolrFieldMatrix(solrServer, "id", "multiNaryStringField", true, null,
+       TYPE.MULTINOMIAL, options);
+    hash = hasher.hash("cat2");
+    assertEquals(hasher.sign(hash), categories.get(1, hasher.column(hash)), 1e-9);
+    assertEquals(2, categories.viewRow(1).getNumNondefaultElements());
+
+    SolrInputDocument document = new SolrInputDocument();
+    document.addField("id", "8");
+    document.addField("multiNaryStringField", "cat1");
+    document.addField("multiNaryStringField", "cat1");
+    solrServer.add(document);
+    solrServer.commit();
+    hash = hasher.hash("cat1");
+    assertEquals(hasher.sign(hash), categories.get(8, hasher.column(hash)), 1e-9);
+    categories.setFrequencyWeighted(true);
+    categories.getRowCache().invalidateAll();
+    assertEquals(2 * hasher.sign(hash), categories.get(8, hasher.column(hash)), 1e-9);
+  }
+
+  @Test
+  public void testFrequencyWeighted() throws Exception {
+    SolrInputDocument document = new SolrInputDocument();
+    document.addField("id", "8");
+    document.addField("multiNaryStringField", "cat1");
+    document.addField("multiNaryStringField", "cat2");
+    document.addField("multiNaryStringField", "cat1");
+    solrServer.add(document);
+    solrServer.commit();
+
+    SolrFieldMatrix matrix = new SolrFieldMatrix(solrServer, "id", "multiNaryStringField", TYPE.MULTINOMIAL, true);
+    int cat1 = matrix.getColumnLabelBindings().get("cat1");
+    assertEquals(1, matrix.get(8, cat1), 0);
+    matrix.setFrequencyWeighted(true);
+    matrix.getRowCache().invalidateAll();
+    assertEquals(2, matrix.get(8, cat1), 0);
+    assertEquals(1, matrix.get(8, matrix.getColumnLabelBindings().get("cat2")), 0);
+    assertEquals(2, matrix.viewColumn(cat1).get(8), 0);
+  }
+
+  @Test
+  public void testExportHandler() throws Exception {
+    //answers export requests with a canned docValues stream, and anything else with the embedded server
+    SolrServer server = new RecordingSolrServer(solrServer).respond("/export",
+       "{\"responseHeader\":{\"status\":0},\"response\":{\"numFound\":2,\"docs\":[" +
+       "{\"id\":1,\"multiNaryStringField\":[\"cat1\",\"cat2\"]},{\"id\":3,\"multiNaryStringField\":[\"cat3\"]}]}}");
+    SolrFieldMatrix matrix = new SolrFieldMatrix(server, "id", "multiNaryStringField", TYPE.MULTINOMIAL, true);
+    matrix.setExportHandler("/export");
+    List<MatrixSlice> rows = Lists.newArrayList(matrix.iterateRows());
+    assertEquals(2, rows.size());
+    assertEquals(1, rows.get(0).index());
+    assertEquals(2, rows.get(0).vector().getNumNondefaultElements());
+    assertEquals(1, rows.get(1).vector().get(matrix.getColumnLabelBindings().get("cat3")), 0);
+
+    //rows are exported one id range of a batch at a time
+    matrix.setBatchSize(2);
+    rows = Lists.newArrayList(matrix.iterateRows());
+    assertEquals(2, rows.size());
+    assertEquals(3, rows.get(1).index());
+  }
+
+  @Test
+  public void testIngesterFailure() throws Exception {
+    SolrIngester ingester = new SolrIngester(solrServer, "id", 2);
+    SolrInputDocument document = new SolrInputDocument();
+    document.addField("id", 5);
+    document.addField("intField", "not a number");
+    ingester.add(document);
+    try {
+      ingester.flush();
+      assertTrue(false);
+    } catch (ContentException e) {
+      //expected
+    }
+    ingester.close();
+  }
+
+  @Test
+  public void testIngesterListenerFailure() throws Exception {
+    final SolrIngester ingester = new SolrIngester(solrServer, "id", 2, 1, 1 << 20, 1);
+    final AtomicInteger notified = new AtomicInteger();
+    ingester.addListener(new SolrIngester.Listener() {
+      @Override
+      public void onSuccess(int[] ids) {
+        notified.addAndGet(ids.length);
+        throw new IllegalStateException("listener failure");
+      }
+
+      @Override
+      public void onFailure(int[] ids, ContentException e) {
+        throw new IllegalStateException("listener failure");
+      }
+
+      @Override
+      public void onCommit() {
+      }
+    });
+    //the single sender must survive the listener, or adding blocks on the full queue
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<?> adds = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        for (int id = 11; id <= 20; id++) {
+          SolrInputDocument document = new SolrInputDocument();
+          document.addField("id", id);
+          document.addField("intField", id);
+          try {
+            ingester.add(document);
+          } catch (ContentException e) {
+            //the failure of the listener, thrown once
+            ingester.add(document);
+          }
+        }
+        return null;
+      }
+    });
+    adds.get(10, TimeUnit.SECONDS);
+    executor.shutdown();
+    try {
+      ingester.flush();
+    } catch (ContentException e) {
+      //the failure of the listener, if not thrown from add
+    }
+    ingester.flush();
+    assertEquals(10, notified.get());
+    assertEquals(10, solrServer.query(new SolrQuery("id:[11 TO 20]")).getResults().getNumFound());
+    ingester.close();
+  }
+
   @Test
   public void dummyTest() throws IOException, SolrServerException {
     assertEquals(1,1);
   }
 
+  /**
+   * Passes requests to a server, and records their parameters; requests to a path with a canned JSON response are
+   * answered with the response instead
+   */
+  private static class RecordingSolrServer extends SolrServer {
+    private final SolrServer server;
+    private final List<SolrParams> params = new CopyOnWriteArrayList<SolrParams>();
+    private final Map<String, String> responses = Maps.newConcurrentMap();
+
+    RecordingSolrServer(SolrServer server) {
+      this.server = server;
+    }
+
+    RecordingSolrServer respond(String path, String json) {
+      responses.put(path, json);
+      return this;
+    }
+
+    /**
+     * Called before each request is answered
+     */
+    protected void beforeRequest(SolrRequest request) {
+    }
+
+    @Override
+    public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+      params.add(request.getParams() == null ? new ModifiableSolrParams() : request.getParams());
+      beforeRequest(request);
+      String json = responses.get(request.getPath());
+      if (json != null) {
+        return request.getResponseParser().processResponse(new StringReader(json));
+      }
+      return server.request(request);
+    }
+
+    int requests() {
+      return params.size();
+    }
+
+    List<SolrParams> params() {
+      return params;
+    }
+
+    void clear() {
+      params.clear();
+    }
+
+    @Override
+    public void shutdown() {
+    }
+  }
+
   @After
   public void cleanup()throws IOException, SolrServerException{
     solrServer.deleteByQuery("*:*");
@@ -0,0 +1,67 @@
+package com.personaissance.persona.contentdb.matrix;
+
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.junit.Before;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+
+public class VectorSuperViewTest {
+
+  private Vector[] vectors;
+  private VectorSuperView view;
+
+  @Before
+  public void createView() {
+    Vector first = new SequentialAccessSparseVector(3);
+    first.setQuick(1, 1.0);
+    Vector empty = new SequentialAccessSparseVector(0);
+    Vector second = new SequentialAccessSparseVector(4);
+    second.setQuick(0, 2.0);
+    second.setQuick(3, 3.0);
+    vectors = new Vector[]{first, empty, second};
+    view = new VectorSuperView(7, vectors);
+  }
+
+  @Test
+  public void testGetQuick() {
+    assertEquals(0.0, view.getQuick(0), 0);
+    assertEquals(1.0, view.getQuick(1), 0);
+    assertEquals(2.0, view.getQuick(3), 0);
+    assertEquals(3.0, view.getQuick(6), 0);
+  }
+
+  @Test
+  public void testNonZeroes() {
+    int[] indices = {1, 3, 6};
+    double[] values = {1.0, 2.0, 3.0};
+    int i = 0;
+    for (Vector.Element element : view.nonZeroes()) {
+      assertEquals(indices[i], element.index());
+      assertEquals(values[i], element.get(), 0);
+      i++;
+    }
+    assertEquals(3, i);
+    assertEquals(3, view.getNumNondefaultElements());
+  }
+
+  @Test
+  public void testSetQuick() {
+    view.getNumNondefaultElements();
+    view.setQuick(4, 5.0);
+    assertEquals(5.0, vectors[2].getQuick(1), 0);
+    assertEquals(4, view.getNumNondefaultElements());
+    assertEquals(5.0 * 5.0 + 14.0, view.dot(view), 0);
+  }
+
+  @Test
+  public void testDotAndCopy() {
+    Vector dense = new DenseVector(new double[]{1, 1, 1, 1, 1, 1, 2});
+    assertEquals(9.0, view.dot(dense), 0);
+    Vector copy = VectorSuperView.createNewVector(7, vectors);
+    assertEquals(3.0, copy.getQuick(6), 0);
+    assertEquals(0.0, copy.getDistanceSquared(view), 0);
+  }
+}
@@ -0,0 +1,49 @@
+package com.personaissance.persona.contentdb.solrj.export;
+
+import com.google.common.collect.Lists;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class ExportResponseParserTest {
+
+  @Test
+  public void testParse() throws Exception {
+    String json = "{\"responseHeader\": {\"status\": 0}, \"response\":{\"numFound\":2, \"docs\":[" +
+       "{\"id\":1,\"intField\":10,\"multiNaryStringField\":[\"cat1\",\"cat,2\"]}," +
+       "{\"id\":2,\"multiNaryStringField\":[\"cat3\"]}]}}";
+    final List<SolrDocument> documents = Lists.newArrayList();
+    NamedList<Object> response = new ExportResponseParser(new ExportResponseParser.Callback() {
+      @Override
+      public void document(SolrDocument document) {
+        documents.add(document);
+      }
+    }).processResponse(new StringReader(json));
+
+    assertEquals(2L, response.get("numFound"));
+    assertEquals(2, documents.size());
+    assertEquals(1, ((Number) documents.get(0).getFieldValue("id")).intValue());
+    assertEquals(10, ((Number) documents.get(0).getFieldValue("intField")).intValue());
+    assertEquals(Lists.newArrayList("cat1", "cat,2"), documents.get(0).getFieldValues("multiNaryStringField"));
+    assertEquals(Lists.newArrayList("cat3"), documents.get(1).getFieldValues("multiNaryStringField"));
+  }
+
+  @Test
+  public void testError() throws Exception {
+    String json = "{\"responseHeader\": {\"status\": 400}, \"response\":{\"numFound\":0, \"docs\":[]}, " +
+       "\"error\": \"field has no docValues\"}";
+    try {
+      new ExportResponseParser(null).processResponse(new StringReader(json));
+      assertTrue(false);
+    } catch (SolrException e) {
+      assertTrue(e.getMessage().contains("docValues"));
+    }
+  }
+}